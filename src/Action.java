@@ -1,5 +1,3 @@
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -7,6 +5,10 @@ import java.util.Optional;
  * An action that can be taken by an entity
  */
 public final class Action extends Animation {
+    public static final List<EntityKind> DUDE_NOT_FULL_TARGETS = List.of(EntityKind.TREE, EntityKind.SAPLING);
+    public static final List<EntityKind> DUDE_FULL_TARGETS = List.of(EntityKind.HOUSE);
+    public static final List<EntityKind> FAIRY_TARGETS = List.of(EntityKind.STUMP);
+
     /*
     public ActionKind kind;
     public Entity entity;
@@ -21,15 +23,34 @@ public final class Action extends Animation {
     }
 
     public static void executeDudeNotFullActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> target = WorldModel.findNearest(world, entity.position, new ArrayList<>(Arrays.asList(EntityKind.TREE, EntityKind.SAPLING)));
+        if (world.useFlowFields) {
+            Entity target = FlowField.approach(FlowField.get(world, DUDE_NOT_FULL_TARGETS, true), world, scheduler, entity);
+            if (target == null || !harvest(entity, target, world, imageStore, scheduler) || !transformNotFull(entity, world, scheduler, imageStore)) {
+                EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
+            }
+            return;
+        }
 
-        if (target.isEmpty() || !moveToNotFull(entity, world, target.get(), scheduler) || !transformNotFull(entity, world, scheduler, imageStore)) {
+        Optional<Entity> target = world.reserveTargets ?
+                WorldModel.reserveTarget(world, entity, DUDE_NOT_FULL_TARGETS) :
+                WorldModel.findNearestCached(world, entity, DUDE_NOT_FULL_TARGETS);
+
+        if (target.isEmpty() || !moveToNotFull(entity, world, target.get(), imageStore, scheduler) || !transformNotFull(entity, world, scheduler, imageStore)) {
             EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
         }
     }
 
     public static void executeDudeFullActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> fullTarget = WorldModel.findNearest(world, entity.position, new ArrayList<>(List.of(EntityKind.HOUSE)));
+        if (world.useFlowFields) {
+            if (FlowField.approach(FlowField.get(world, DUDE_FULL_TARGETS, true), world, scheduler, entity) != null) {
+                transformFull(entity, world, scheduler, imageStore);
+            } else {
+                EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
+            }
+            return;
+        }
+
+        Optional<Entity> fullTarget = WorldModel.findNearestCached(world, entity, DUDE_FULL_TARGETS);
 
         if (fullTarget.isPresent() && moveToFull(entity, world, fullTarget.get(), scheduler)) {
             transformFull(entity, world, scheduler, imageStore);
@@ -46,7 +67,41 @@ public final class Action extends Animation {
         }
     }
 
+    /*
+       Same as executeAnimationAction, but re-arms the event that just ran
+       instead of allocating a new one for endlessly repeating animations.
+    */
+    public static void executeAnimationEvent(Event event, EventScheduler scheduler) {
+        Action action = event.action;
+        if (action.repeatCount == 0) {
+            ImageStore.nextImage(action.entity);
+            if (!EventScheduler.inRegion(scheduler, action.entity.position) && getAnimationPeriod(action.entity) > 0) {
+                // outside the region it is animated lazily from now on, see EventScheduler.syncAnimation
+                action.entity.nextAnimationTime = scheduler.currentTime + getAnimationPeriod(action.entity);
+            } else {
+                EventScheduler.rescheduleEvent(scheduler, event, getAnimationPeriod(action.entity));
+            }
+        } else {
+            executeAnimationAction(action, scheduler);
+        }
+    }
+
     public static void executeActivityAction(Action action, EventScheduler scheduler) {
+        Profiling.Activity sample = Profiling.sampleActivity();
+        if (sample == null) {
+            executeActivity(action, scheduler);
+            return;
+        }
+        sample.begin();
+        // the kind before the activity, which may transform the entity
+        sample.entityKind = action.entity.kind.name();
+        sample.entityId = action.entity.id;
+        executeActivity(action, scheduler);
+        sample.queueDepth = scheduler.eventQueue.size();
+        sample.commit();
+    }
+
+    private static void executeActivity(Action action, EventScheduler scheduler) {
         switch (action.entity.kind) {
             case SAPLING:
                 executeSaplingActivity(action.entity, action.world, action.imageStore, scheduler);
@@ -72,37 +127,50 @@ public final class Action extends Animation {
         switch (entity.kind) {
             case DUDE_FULL:
                 EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             case DUDE_NOT_FULL:
                 EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             case OBSTACLE:
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             case FAIRY:
                 EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             case SAPLING:
                 EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             case TREE:
                 EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
-                EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+                scheduleAnimation(entity, scheduler);
                 break;
 
             default:
         }
     }
 
+    /*
+       Endless animations either get an ANIMATION event, or with lazy
+       animation on just remember when their next frame is due; imageIndex
+       is then caught up by EventScheduler.syncAnimation when it is read.
+    */
+    public static void scheduleAnimation(Entity entity, EventScheduler scheduler) {
+        if ((scheduler.lazyAnimation || !EventScheduler.inRegion(scheduler, entity.position)) && getAnimationPeriod(entity) > 0) {
+            entity.nextAnimationTime = scheduler.currentTime + getAnimationPeriod(entity);
+        } else {
+            EventScheduler.scheduleEvent(scheduler, entity, createAnimationAction(entity, 0), getAnimationPeriod(entity));
+        }
+    }
+
     public static void executeAction(Action action, EventScheduler scheduler) {
         switch (action.kind) {
             case ACTIVITY:
@@ -124,47 +192,221 @@ public final class Action extends Animation {
     }
 
     public static void executeSaplingActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        entity.health++;
-        if (!transformPlant(entity, world, scheduler, imageStore)) {
-            EventScheduler.scheduleEvent(scheduler, entity, Action.createActivityAction(entity, world, imageStore), entity.actionPeriod);
+        int periods = plantPeriods(entity, scheduler);
+        for (int i = 0; i < periods; i++) {
+            entity.health++;
+            if (transformPlant(entity, world, scheduler, imageStore)) {
+                return;
+            }
         }
+        schedulePlantActivity(entity, world, imageStore, scheduler);
     }
 
     public static void executeTreeActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
 
         if (!transformPlant(entity, world, scheduler, imageStore)) {
 
-            EventScheduler.scheduleEvent(scheduler, entity, Action.createActivityAction(entity, world, imageStore), entity.actionPeriod);
+            schedulePlantActivity(entity, world, imageStore, scheduler);
         }
     }
 
-    public static void executeFairyActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
-        Optional<Entity> fairyTarget = WorldModel.findNearest(world, entity.position, new ArrayList<>(List.of(EntityKind.STUMP)));
+    // how many action periods this plant activity stands for, more than one after a coarse wait
+    public static int plantPeriods(Entity entity, EventScheduler scheduler) {
+        if (!entity.coarseActivity) {
+            return 1;
+        }
+        return Math.max(1, (int) Math.round((scheduler.currentTime - entity.activityTime) / entity.actionPeriod));
+    }
 
-        if (fairyTarget.isPresent()) {
-            Point tgtPos = fairyTarget.get().position;
+    /*
+       Outside the region plants wait several action periods at a time and
+       then catch up on all of them at once. A sapling never waits past the
+       period in which it would turn into a tree.
+    */
+    public static void schedulePlantActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        int periods = 1;
+        if (!EventScheduler.inRegion(scheduler, entity.position)) {
+            periods = scheduler.regionActivityFactor;
+            if (entity.kind == EntityKind.SAPLING) {
+                periods = Math.min(periods, entity.healthLimit - entity.health);
+            }
+            periods = Math.max(periods, 1);
+        }
+        entity.activityTime = scheduler.currentTime;
+        entity.coarseActivity = periods > 1;
+        EventScheduler.scheduleEvent(scheduler, entity, Action.createActivityAction(entity, world, imageStore), entity.actionPeriod * periods);
+    }
 
-            if (moveToFairy(entity, world, fairyTarget.get(), scheduler)) {
+    /*
+       Brings plants inside the region that are waiting on the coarse
+       schedule back in step: the periods they missed are applied now and
+       their next activity is put back where the full rate schedule has it.
+    */
+    public static void refreshRegion(WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        Viewport region = scheduler.region;
+        int margin = scheduler.regionMargin;
+        for (int row = Math.max(0, region.row - margin); row < Math.min(world.numRows, region.row + region.numRows + margin); row++) {
+            for (int col = Math.max(0, region.col - margin); col < Math.min(world.numCols, region.col + region.numCols + margin); col++) {
+                Optional<Entity> occupant = WorldModel.getOccupant(world, new Point(col, row));
+                if (occupant.isPresent() && occupant.get().coarseActivity) {
+                    catchUpPlant(occupant.get(), world, imageStore, scheduler);
+                }
+            }
+        }
+    }
 
-                Entity sapling = Entity.createSapling(Functions.SAPLING_KEY + "_" + fairyTarget.get().id, tgtPos, imageStore.getImageList(imageStore, Functions.SAPLING_KEY), 0);
+    public static void catchUpPlant(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        catchUpPlant(entity, world, imageStore, scheduler, false);
+    }
 
-                Entity.addEntity(world, sapling);
-                Action.scheduleActions(sapling, scheduler, world, imageStore);
+    /*
+       With beforeNow, only the periods that end strictly before the
+       current time are applied: one ending right now would run after the
+       dudes' activities of this batch on the full rate schedule.
+    */
+    public static void catchUpPlant(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler, boolean beforeNow) {
+        EventScheduler.unscheduleActivity(scheduler, entity);
+        entity.coarseActivity = false;
+
+        double elapsed = (scheduler.currentTime - entity.activityTime) / entity.actionPeriod;
+        int periods = beforeNow ? Math.max(0, (int) Math.ceil(elapsed) - 1) : (int) Math.floor(elapsed);
+        for (int i = 0; i < periods; i++) {
+            if (entity.kind == EntityKind.SAPLING) {
+                entity.health++;
+            }
+            if (transformPlant(entity, world, scheduler, imageStore)) {
+                return;
+            }
+        }
+        entity.activityTime += periods * entity.actionPeriod;
+        double next = entity.activityTime + entity.actionPeriod;
+        EventScheduler.scheduleEvent(scheduler, entity, Action.createActivityAction(entity, world, imageStore), next - scheduler.currentTime);
+    }
+
+    public static void executeFairyActivity(Entity entity, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        if (world.useFlowFields) {
+            Entity stump = FlowField.approach(FlowField.get(world, FAIRY_TARGETS, false), world, scheduler, entity);
+            if (stump != null) {
+                Point tgtPos = stump.position;
+                Entity.removeEntity(world, scheduler, stump);
+                plantSapling(stump, tgtPos, world, imageStore, scheduler);
+            }
+        } else {
+            Optional<Entity> fairyTarget = WorldModel.findNearestCached(world, entity, FAIRY_TARGETS);
+
+            if (fairyTarget.isPresent()) {
+                Point tgtPos = fairyTarget.get().position;
+
+                if (moveToFairy(entity, world, fairyTarget.get(), scheduler)) {
+                    plantSapling(fairyTarget.get(), tgtPos, world, imageStore, scheduler);
+                }
             }
         }
 
         EventScheduler.scheduleEvent(scheduler, entity, Action.createActivityAction(entity, world, imageStore), entity.actionPeriod);
     }
 
-    public static boolean transformNotFull(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        if (entity.resourceCount >= entity.resourceLimit) {
-            Entity dude = Entity.createDudeFull(entity.id, entity.position, entity.actionPeriod, entity.animationPeriod, entity.resourceLimit, entity.images);
+    public static List<EntityKind> targetKinds(EntityKind kind) {
+        return switch (kind) {
+            case DUDE_NOT_FULL -> DUDE_NOT_FULL_TARGETS;
+            case DUDE_FULL -> DUDE_FULL_TARGETS;
+            case FAIRY -> FAIRY_TARGETS;
+            default -> null;
+        };
+    }
 
-            Entity.removeEntity(world, scheduler, entity);
-            EventScheduler.unscheduleAllEvents(scheduler, entity);
+    /*
+       Works out the step a dude or fairy activity would take, reading the
+       world but not changing it, so that many can be planned at once on
+       different threads. Returns null whenever the activity would do more
+       than step into an empty cell (harvest, trample, plant, transform,
+       stay) or uses shared state to choose (reservations, flow fields).
+    */
+    public static MovePlan planActivity(Entity entity, WorldModel world) {
+        List<EntityKind> kinds = targetKinds(entity.kind);
+        if (kinds == null || world.reserveTargets || world.useFlowFields) {
+            return null;
+        }
+        long version = WorldModel.kindsVersion(world, kinds);
+        Optional<Entity> target = WorldModel.findNearestCached(world, entity, kinds);
+        if (target.isEmpty() || Point.adjacent(entity.position, target.get().position)) {
+            return null;
+        }
+
+        Point tgtPos = target.get().position;
+        Point to = entity.kind == EntityKind.FAIRY ? nextPositionFairy(entity, world, tgtPos) : nextPositionDude(entity, world, tgtPos);
+        if (to.equals(entity.position) || WorldModel.isBlocked(world, WorldModel.cellIndex(world, to))) {
+            return null;
+        }
+        int horiz = Integer.signum(tgtPos.x - entity.position.x);
+        int passedOver = horiz != 0 && to.x == entity.position.x ? WorldModel.cellIndex(world, new Point(entity.position.x + horiz, entity.position.y)) : -1;
+        return new MovePlan(entity.position, to, passedOver, version);
+    }
+
+    /*
+       Takes a planned step if the activity would still take exactly that
+       step now: the entity and its targets haven't moved, the cell it
+       passed over is still blocked and the cell it steps into is free.
+       Returns false without changing anything otherwise, and the activity
+       has to run the usual way.
+    */
+    public static boolean commitPlan(MovePlan plan, Action action, EventScheduler scheduler) {
+        Entity entity = action.entity;
+        WorldModel world = action.world;
+        if (!entity.position.equals(plan.from) || WorldModel.kindsVersion(world, targetKinds(entity.kind)) != plan.targetVersion) {
+            return false;
+        }
+        if (plan.passedOver >= 0 && !blocks(entity, world, plan.passedOver)) {
+            return false;
+        }
+        if (!Entity.tryMoveEntity(world, entity, plan.to)) {
+            return false;
+        }
+        EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, action.imageStore), entity.actionPeriod);
+        return true;
+    }
+
+    /*
+       Like commitPlan for a step that was already claimed with
+       Entity.claimMove. Only the targets can have changed since, as
+       nothing else in the batch comes near the step's cells; if they did,
+       the claim is undone and false is returned.
+    */
+    public static boolean commitClaimedPlan(MovePlan plan, Action action, EventScheduler scheduler) {
+        Entity entity = action.entity;
+        WorldModel world = action.world;
+        if (WorldModel.kindsVersion(world, targetKinds(entity.kind)) != plan.targetVersion) {
+            Entity.undoMove(world, entity, plan.to);
+            return false;
+        }
+        Entity.finishMove(world, entity, plan.to);
+        EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, action.imageStore), entity.actionPeriod);
+        return true;
+    }
+
+    // whether the cell stops the entity, the way nextPositionDude and nextPositionFairy see it
+    private static boolean blocks(Entity entity, WorldModel world, int index) {
+        if (!WorldModel.isBlocked(world, index)) {
+            return false;
+        }
+        Entity occupant = WorldModel.occupantAt(world, index);
+        return entity.kind == EntityKind.FAIRY || occupant == null || occupant.kind != EntityKind.STUMP;
+    }
+
+    public static void plantSapling(Entity stump, Point pos, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        Entity sapling = Entity.createSapling(Functions.SAPLING_KEY + "_" + stump.id, pos, imageStore.getImageList(imageStore, Functions.SAPLING_KEY), 0);
 
-            Entity.addEntity(world, dude);
-            Action.scheduleActions(dude, scheduler, world, imageStore);
+        Entity.addEntity(world, sapling);
+        Action.scheduleActions(sapling, scheduler, world, imageStore);
+    }
+
+    /*
+       Dudes change between full and not full in place. Their images and
+       animation stay as they are, only the activity is scheduled anew.
+    */
+    public static boolean transformNotFull(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
+        if (entity.resourceCount >= entity.resourceLimit) {
+            transformDude(entity, EntityKind.DUDE_FULL, world, scheduler, imageStore);
 
             return true;
         }
@@ -173,15 +415,17 @@ public final class Action extends Animation {
     }
 
     public static void transformFull(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        Entity dude = Entity.createDudeNotFull(entity.id, entity.position, entity.actionPeriod, entity.animationPeriod, entity.resourceLimit, entity.images);
+        transformDude(entity, EntityKind.DUDE_NOT_FULL, world, scheduler, imageStore);
+    }
 
-        Entity.removeEntity(world, scheduler, entity);
+    private static void transformDude(Entity entity, EntityKind kind, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
+        EventScheduler.unscheduleActivity(scheduler, entity);
+        Entity.changeKind(world, entity, kind);
+        entity.resourceCount = 0;
 
-        Entity.addEntity(world, dude);
-        Action.scheduleActions(dude, scheduler, world, imageStore);
+        EventScheduler.scheduleEvent(scheduler, entity, createActivityAction(entity, world, imageStore), entity.actionPeriod);
     }
 
-
     public static boolean transformPlant(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
         if (entity.kind == EntityKind.TREE) {
             return transformTree(entity, world, scheduler, imageStore);
@@ -194,11 +438,7 @@ public final class Action extends Animation {
 
     public static boolean transformTree(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
         if (entity.health <= 0) {
-            Entity stump = Entity.createStump(Functions.STUMP_KEY + "_" + entity.id, entity.position, imageStore.getImageList(imageStore, Functions.STUMP_KEY));
-
-            Entity.removeEntity(world, scheduler, entity);
-
-            Entity.addEntity(world, stump);
+            toStump(entity, world, scheduler, imageStore);
 
             return true;
         }
@@ -208,20 +448,12 @@ public final class Action extends Animation {
 
     public static boolean transformSapling(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
         if (entity.health <= 0) {
-            Entity stump = Entity.createStump(Functions.STUMP_KEY + "_" + entity.id, entity.position, imageStore.getImageList(imageStore, Functions.STUMP_KEY));
-
-            Entity.removeEntity(world, scheduler, entity);
-
-            Entity.addEntity(world, stump);
+            toStump(entity, world, scheduler, imageStore);
 
             return true;
         } else if (entity.health >= entity.healthLimit) {
-            Entity tree = Entity.createTree(Functions.TREE_KEY + "_" + entity.id, entity.position, Functions.getNumFromRange(Functions.TREE_ACTION_MAX, Functions.TREE_ACTION_MIN), Functions.getNumFromRange(Functions.TREE_ANIMATION_MAX, Functions.TREE_ANIMATION_MIN), Functions.getIntFromRange(Functions.TREE_HEALTH_MAX, Functions.TREE_HEALTH_MIN), imageStore.getImageList(imageStore, Functions.TREE_KEY));
-
-            Entity.removeEntity(world, scheduler, entity);
-
-            Entity.addEntity(world, tree);
-            Action.scheduleActions(tree, scheduler, world, imageStore);
+            Entity.transformInPlace(world, scheduler, entity, EntityKind.TREE, Functions.TREE_KEY + "_" + entity.id, imageStore.getImageList(imageStore, Functions.TREE_KEY), Functions.getNumFromRange(Functions.TREE_ACTION_MAX, Functions.TREE_ACTION_MIN), Functions.getNumFromRange(Functions.TREE_ANIMATION_MAX, Functions.TREE_ANIMATION_MIN), Functions.getIntFromRange(Functions.TREE_HEALTH_MAX, Functions.TREE_HEALTH_MIN));
+            Action.scheduleActions(entity, scheduler, world, imageStore);
 
             return true;
         }
@@ -229,6 +461,10 @@ public final class Action extends Animation {
         return false;
     }
 
+    private static void toStump(Entity entity, WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
+        Entity.transformInPlace(world, scheduler, entity, EntityKind.STUMP, Functions.STUMP_KEY + "_" + entity.id, imageStore.getImageList(imageStore, Functions.STUMP_KEY), 0, 0, 0);
+    }
+
     public static boolean moveToFairy(Entity fairy, WorldModel world, Entity target, EventScheduler scheduler) {
         if (Point.adjacent(fairy.position, target.position)) {
             Entity.removeEntity(world, scheduler, target);
@@ -243,11 +479,9 @@ public final class Action extends Animation {
         }
     }
 
-    public static boolean moveToNotFull(Entity dude, WorldModel world, Entity target, EventScheduler scheduler) {
+    public static boolean moveToNotFull(Entity dude, WorldModel world, Entity target, ImageStore imageStore, EventScheduler scheduler) {
         if (Point.adjacent(dude.position, target.position)) {
-            dude.resourceCount += 1;
-            target.health--;
-            return true;
+            return harvest(dude, target, world, imageStore, scheduler);
         } else {
             Point nextPos = nextPositionDude(dude, world, target.position);
 
@@ -258,6 +492,25 @@ public final class Action extends Animation {
         }
     }
 
+    /*
+       Takes one unit from a tree or sapling next to the dude. A plant on
+       the coarse schedule is caught up first, so it is harvested as the
+       full rate schedule has it and withers as soon as it would there,
+       rather than being harvested on for the rest of its wait. Returns
+       false if catching up turned it into a stump.
+    */
+    public static boolean harvest(Entity dude, Entity target, WorldModel world, ImageStore imageStore, EventScheduler scheduler) {
+        if (target.coarseActivity) {
+            catchUpPlant(target, world, imageStore, scheduler, true);
+            if (!DUDE_NOT_FULL_TARGETS.contains(target.kind)) {
+                return false;
+            }
+        }
+        dude.resourceCount += 1;
+        target.health--;
+        return true;
+    }
+
     public static boolean moveToFull(Entity dude, WorldModel world, Entity target, EventScheduler scheduler) {
         if (Point.adjacent(dude.position, target.position)) {
             return true;
@@ -275,11 +528,11 @@ public final class Action extends Animation {
         int horiz = Integer.signum(destPos.x - entity.position.x);
         Point newPos = new Point(entity.position.x + horiz, entity.position.y);
 
-        if (horiz == 0 || WorldModel.isOccupied(world, newPos)) {
+        if (horiz == 0 || WorldModel.isBlocked(world, WorldModel.cellIndex(world, newPos))) {
             int vert = Integer.signum(destPos.y - entity.position.y);
             newPos = new Point(entity.position.x, entity.position.y + vert);
 
-            if (vert == 0 || WorldModel.isOccupied(world, newPos)) {
+            if (vert == 0 || WorldModel.isBlocked(world, WorldModel.cellIndex(world, newPos))) {
                 newPos = entity.position;
             }
         }
@@ -291,11 +544,11 @@ public final class Action extends Animation {
         int horiz = Integer.signum(destPos.x - entity.position.x);
         Point newPos = new Point(entity.position.x + horiz, entity.position.y);
 
-        if (horiz == 0 || WorldModel.isOccupied(world, newPos) && WorldModel.getOccupancyCell(world, newPos).kind != EntityKind.STUMP) {
+        if (horiz == 0 || blocksDude(world, newPos)) {
             int vert = Integer.signum(destPos.y - entity.position.y);
             newPos = new Point(entity.position.x, entity.position.y + vert);
 
-            if (vert == 0 || WorldModel.isOccupied(world, newPos) && WorldModel.getOccupancyCell(world, newPos).kind != EntityKind.STUMP) {
+            if (vert == 0 || blocksDude(world, newPos)) {
                 newPos = entity.position;
             }
         }
@@ -303,6 +556,16 @@ public final class Action extends Animation {
         return newPos;
     }
 
+    // dudes trample stumps, anything else in the way (or the world's edge) blocks them
+    public static boolean blocksDude(WorldModel world, Point pos) {
+        int index = WorldModel.cellIndex(world, pos);
+        if (!WorldModel.isBlocked(world, index)) {
+            return false;
+        }
+        Entity occupant = WorldModel.occupantAt(world, index);
+        return occupant == null || occupant.kind != EntityKind.STUMP;
+    }
+
     public static double getAnimationPeriod(Entity entity) {
         switch (entity.kind) {
             case DUDE_FULL:
@@ -1,49 +1,175 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
 
 import processing.core.PImage;
 
 /**
- * Represents a background for the 2D world.
+ * Represents a background for the 2D world. There is one Background per
+ * tile type in a world, shared by every cell of that type, so a tile type
+ * with several images animates everywhere at once from a single frame
+ * clock.
  */
 public final class Background {
     public String id;
     public List<PImage> images;
     public int imageIndex;
+    // images.get(imageIndex), resolved once per frame by advanceFrames instead of once per cell
+    public PImage image;
 
     public Background(String id, List<PImage> images) {
         this.id = id;
         this.images = images;
+        this.image = images.get(0);
+    }
+
+    /*
+       Returns the world's Background for the given tile type, creating it
+       the first time the type is asked for.
+    */
+    public static Background ofType(WorldModel world, String id, ImageStore imageStore) {
+        return world.backgroundTypes.computeIfAbsent(id, key -> new Background(key, ImageStore.getImageList(imageStore, key)));
+    }
+
+    // the world's Background of the same type as the given one, which becomes it if there is none yet
+    public static Background intern(WorldModel world, Background background) {
+        Background existing = world.backgroundTypes.putIfAbsent(background.id, background);
+        return existing != null ? existing : background;
+    }
+
+    /*
+       Moves every tile type to the frame it shows at the given simulated
+       time, one frame every BACKGROUND_ANIMATION_PERIOD.
+    */
+    public static void advanceFrames(WorldModel world, double time) {
+        long tick = (long) (time / Functions.BACKGROUND_ANIMATION_PERIOD);
+        for (Background background : world.backgroundTypes.values()) {
+            background.imageIndex = (int) (tick % background.images.size());
+            background.image = background.images.get(background.imageIndex);
+        }
     }
 
     public static void drawBackground(WorldView view) {
-        for (int row = 0; row < view.viewport.numRows; row++) {
-            for (int col = 0; col < view.viewport.numCols; col++) {
-                Point worldPoint = VirtualWorld.viewportToWorld(view.viewport, col, row);
-                Optional<PImage> image = getBackgroundImage(view.world, worldPoint);
-                if (image.isPresent()) {
-                    view.screen.image(image.get(), col * view.tileWidth, row * view.tileHeight);
-                }
+        Viewport viewport = view.viewport;
+        int rows = Math.min(viewport.numRows, view.world.numRows - viewport.row);
+        int cols = Math.min(viewport.numCols, view.world.numCols - viewport.col);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                Background background = getBackgroundCell(view.world, viewport.col + col, viewport.row + row);
+                view.screen.image(background.image, col * view.tileWidth, row * view.tileHeight);
             }
         }
     }
 
+    /*
+       Allocates the background for numRows x numCols with every cell
+       showing the default background. Sparse worlds only allocate the
+       chunks that get something else, and drop them again once all their
+       cells show the same tile, see compactChunk.
+    */
+    public static void initBackground(WorldModel world, Background defaultBackground) {
+        WorldModel.initStorage(world);
+        world.defaultBackground = intern(world, defaultBackground);
+        if (world.sparse) {
+            world.backgroundChunks = new Background[WorldModel.chunkCount(world)][];
+            world.backgroundFill = new Background[world.backgroundChunks.length];
+            Arrays.fill(world.backgroundFill, world.defaultBackground);
+            return;
+        }
+        world.background = new Background[world.numRows][world.numCols];
+        for (Background[] row : world.background) {
+            Arrays.fill(row, world.defaultBackground);
+        }
+    }
+
     public static Background getBackgroundCell(WorldModel world, Point pos) {
-        return world.background[pos.y][pos.x];
+        return getBackgroundCell(world, pos.x, pos.y);
+    }
+
+    // same as above, for drawing loops that shouldn't make a Point per cell
+    public static Background getBackgroundCell(WorldModel world, int col, int row) {
+        if (world.background != null) {
+            return world.background[row][col];
+        }
+        int index = WorldModel.chunkIndex(world, row + 1, col + 1);
+        Background[] chunk = world.backgroundChunks[index];
+        return chunk == null ? world.backgroundFill[index] : chunk[WorldModel.chunkOffset(row + 1, col + 1)];
     }
 
     public static void setBackgroundCell(WorldModel world, Point pos, Background background) {
-        world.background[pos.y][pos.x] = background;
+        if (world.background != null) {
+            world.background[pos.y][pos.x] = background;
+        } else {
+            int index = WorldModel.chunkIndex(world, pos.y + 1, pos.x + 1);
+            if (world.backgroundChunks[index] == null) {
+                if (background == world.backgroundFill[index]) {
+                    return;
+                }
+                world.backgroundChunks[index] = new Background[WorldModel.CHUNK_SIZE * WorldModel.CHUNK_SIZE];
+                Arrays.fill(world.backgroundChunks[index], world.backgroundFill[index]);
+            }
+            world.backgroundChunks[index][WorldModel.chunkOffset(pos.y + 1, pos.x + 1)] = background;
+        }
+        if (world.overview != null) {
+            Overview.backgroundChanged(world.overview, pos, background);
+        }
     }
 
     public static void parseBackgroundRow(WorldModel world, String line, int row, ImageStore imageStore) {
         String[] cells = line.split(" ");
         if(row < world.numRows){
             int rows = Math.min(cells.length, world.numCols);
+            // decode the row's tiles together instead of one key at a time
+            ImageStore.loadImages(imageStore, new LinkedHashSet<>(Arrays.asList(cells).subList(0, rows)));
             for (int col = 0; col < rows; col++){
-                world.background[row][col] = new Background(cells[col], imageStore.getImageList(imageStore, cells[col]));
+                setBackgroundCell(world, new Point(col, row), ofType(world, cells[col], imageStore));
+            }
+            // a row of chunks is done once its last row inside the world is
+            int gridRow = row + 1;
+            if (world.backgroundChunks != null && (gridRow % WorldModel.CHUNK_SIZE == WorldModel.CHUNK_SIZE - 1 || row == world.numRows - 1)) {
+                for (int chunkCol = 0; chunkCol < world.chunkCols; chunkCol++) {
+                    compactChunk(world, (gridRow >> WorldModel.CHUNK_BITS) * world.chunkCols + chunkCol);
+                }
+            }
+        }
+    }
+
+    public static void compactBackground(WorldModel world) {
+        if (world.backgroundChunks != null) {
+            for (int index = 0; index < world.backgroundChunks.length; index++) {
+                compactChunk(world, index);
+            }
+        }
+    }
+
+    /*
+       Drops the chunk if every one of its cells inside the world shows the
+       same tile, which becomes the chunk's fill. Border cells are never
+       read, so they don't count.
+    */
+    public static void compactChunk(WorldModel world, int index) {
+        Background[] chunk = world.backgroundChunks[index];
+        if (chunk == null) {
+            return;
+        }
+        int top = (index / world.chunkCols) << WorldModel.CHUNK_BITS;
+        int left = (index % world.chunkCols) << WorldModel.CHUNK_BITS;
+        Background first = null;
+        for (int row = Math.max(1, top); row < Math.min(world.numRows + 1, top + WorldModel.CHUNK_SIZE); row++) {
+            for (int col = Math.max(1, left); col < Math.min(world.numCols + 1, left + WorldModel.CHUNK_SIZE); col++) {
+                Background background = chunk[WorldModel.chunkOffset(row, col)];
+                if (first == null) {
+                    first = background;
+                } else if (background != first) {
+                    return;
+                }
             }
         }
+        if (first != null) {
+            world.backgroundFill[index] = first;
+            world.backgroundChunks[index] = null;
+        }
     }
 
     public static Optional<PImage> getBackgroundImage(WorldModel world, Point pos) {
@@ -0,0 +1,353 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.*;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Rough measurements of startup and simulation hot paths, run as
+ * Benchmarks NAME [args]. Results are printed to standard out.
+ */
+public final class Benchmarks {
+    public static final int WARMUP_ROUNDS = 3;
+    public static final int ROUNDS = 5;
+
+    public static final String USAGE = "usage: Benchmarks images [IMAGE_LIST] | targets [SIZE] [SECONDS] | paths [SIZE] [SECONDS] | parallel [SIZE] [SECONDS] | events [SIZE] [SECONDS] | log [SIZE] | soak [SIZE] [SECONDS] | render [SIZE] [SECONDS] | overview [SIZE] | sparse [SIZE]";
+
+    public static void main(String[] args) throws IOException {
+        String name = args.length > 0 ? args[0] : "";
+        switch (name) {
+            case "images" -> imageLoading(args.length > 1 ? args[1] : VirtualWorld.IMAGE_LIST_FILE_NAME);
+            case "targets" -> targeting(args.length > 1 ? Integer.parseInt(args[1]) : 150, args.length > 2 ? Double.parseDouble(args[2]) : 60);
+            case "paths" -> pathing(args.length > 1 ? Integer.parseInt(args[1]) : 150, args.length > 2 ? Double.parseDouble(args[2]) : 60);
+            case "parallel" -> parallelPlanning(args.length > 1 ? Integer.parseInt(args[1]) : 300, args.length > 2 ? Double.parseDouble(args[2]) : 20);
+            case "events" -> eventThroughput(args.length > 1 ? Integer.parseInt(args[1]) : 200, args.length > 2 ? Double.parseDouble(args[2]) : 60);
+            case "log" -> stateExport(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+            case "soak" -> soak(args.length > 1 ? Integer.parseInt(args[1]) : 100, args.length > 2 ? Double.parseDouble(args[2]) : 600);
+            case "sparse" -> sparseStorage(args.length > 1 ? Integer.parseInt(args[1]) : 4000);
+            case "overview" -> overview(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+            case "render" -> rendering(args.length > 1 ? Integer.parseInt(args[1]) : 200, args.length > 2 ? Double.parseDouble(args[2]) : 10);
+            default -> System.err.println(USAGE);
+        }
+    }
+
+    /*
+       Sets up a VirtualWorld the way setup() does, without a window, for
+       the given save file contents and command line flags.
+    */
+    public static VirtualWorld headlessWorld(String sav, String... flags) {
+        VirtualWorld virtualWorld = new VirtualWorld();
+        virtualWorld.parseCommandLine(flags);
+        virtualWorld.loadImages(VirtualWorld.IMAGE_LIST_FILE_NAME);
+        virtualWorld.loadWorld(sav, virtualWorld.imageStore);
+        virtualWorld.view = new WorldView(VirtualWorld.VIEW_ROWS, VirtualWorld.VIEW_COLS, virtualWorld, virtualWorld.world, VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT);
+        virtualWorld.scheduler = virtualWorld.createScheduler();
+        virtualWorld.scheduleActions(virtualWorld.world, virtualWorld.scheduler, virtualWorld.imageStore);
+        return virtualWorld;
+    }
+
+    public static String generatedWorld(int size, Map<String, Double> densities) throws IOException {
+        StringWriter out = new StringWriter();
+        WorldGenerator.generate(out, size, size, 42, densities, List.of("grass"));
+        return out.toString();
+    }
+
+    /*
+       Dense forest with many dudes, with and without target reservation:
+       counts full target searches and the events it took to run.
+    */
+    public static void targeting(int size, double seconds) throws IOException {
+        Map<String, Double> densities = WorldGenerator.defaultDensities();
+        densities.put(Functions.TREE_KEY, 0.25);
+        densities.put(Functions.DUDE_KEY, 0.03);
+        String sav = generatedWorld(size, densities);
+
+        for (String[] flags : List.of(new String[0], new String[]{VirtualWorld.RESERVE_FLAG})) {
+            VirtualWorld virtualWorld = headlessWorld(sav, flags);
+            long start = System.nanoTime();
+            virtualWorld.update(seconds);
+            System.out.printf("targets %s: %d searches, %d events, %d stumps, %.1f ms%n", String.join(" ", flags),
+                    virtualWorld.world.searches, virtualWorld.scheduler.eventsRun,
+                    WorldModel.population(virtualWorld.world, EntityKind.STUMP), (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /*
+       Dense forest with many dudes and fairies, each searching and
+       planning its own path against moving by the shared flow fields.
+    */
+    public static void pathing(int size, double seconds) throws IOException {
+        Map<String, Double> densities = WorldGenerator.defaultDensities();
+        densities.put(Functions.TREE_KEY, 0.25);
+        densities.put(Functions.DUDE_KEY, 0.03);
+        densities.put(Functions.FAIRY_KEY, 0.01);
+        String sav = generatedWorld(size, densities);
+
+        for (String[] flags : List.of(new String[0], new String[]{VirtualWorld.FLOW_FIELD_FLAG})) {
+            VirtualWorld virtualWorld = headlessWorld(sav, flags);
+            long start = System.nanoTime();
+            virtualWorld.update(seconds);
+            System.out.printf("paths %s: %d events, %d stumps, %d saplings, %.1f ms%n", String.join(" ", flags),
+                    virtualWorld.scheduler.eventsRun, WorldModel.population(virtualWorld.world, EntityKind.STUMP),
+                    WorldModel.population(virtualWorld.world, EntityKind.SAPLING), (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    /*
+       Many dudes sharing one action period, so they come up in big
+       batches, run one at a time and with the batch planned in parallel.
+    */
+    public static void parallelPlanning(int size, double seconds) throws IOException {
+        Map<String, Double> densities = WorldGenerator.defaultDensities();
+        densities.put(Functions.FAIRY_KEY, 0.0);
+        densities.put(Functions.SAPLING_KEY, 0.0);
+        densities.put(Functions.DUDE_KEY, 0.05);
+        String sav = generatedWorld(size, densities).replaceAll("(?m)^(dude \\S+ \\d+ \\d+) \\S+", "$1 0.800");
+
+        List<String> logs = new ArrayList<>();
+        for (String[] flags : List.of(new String[0], new String[]{VirtualWorld.PARALLEL_FLAG})) {
+            VirtualWorld virtualWorld = headlessWorld(sav, flags);
+            long start = System.nanoTime();
+            virtualWorld.update(seconds);
+            System.out.printf("parallel %s: %d events, %d planned steps taken (%d claimed on the pool), %d searches, %.1f ms%n", String.join(" ", flags),
+                    virtualWorld.scheduler.eventsRun, virtualWorld.scheduler.stepsCommitted, virtualWorld.scheduler.stepsClaimed, virtualWorld.world.searches,
+                    (System.nanoTime() - start) / 1e6);
+            List<String> log = new ArrayList<>(virtualWorld.world.log());
+            Collections.sort(log);
+            logs.add(String.join("\n", log));
+        }
+        System.out.println("same result: " + logs.get(0).equals(logs.get(1)));
+    }
+
+    /*
+       Average wall-clock time per event on a generated world with the
+       default densities, after a few warmup rounds.
+    */
+    public static void eventThroughput(int size, double seconds) throws IOException {
+        String sav = generatedWorld(size, WorldGenerator.defaultDensities());
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            VirtualWorld virtualWorld = headlessWorld(sav);
+            long start = System.nanoTime();
+            virtualWorld.update(seconds);
+            long nanos = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("events: %d events, %.1f ns/event%n", virtualWorld.scheduler.eventsRun, (double) nanos / virtualWorld.scheduler.eventsRun);
+            }
+        }
+    }
+
+    /*
+       Getting at the state of a big world: log() as the tests use it,
+       writeLog into a buffered writer, and computing the state hash from
+       scratch (reading the kept one is free).
+    */
+    public static void stateExport(int size) throws IOException {
+        VirtualWorld virtualWorld = headlessWorld(generatedWorld(size, WorldGenerator.defaultDensities()));
+        WorldModel world = virtualWorld.world;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            int lines = world.log().size();
+            long logNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            StringWriter out = new StringWriter(lines * 24);
+            WorldModel.writeLog(world, new BufferedWriter(out, 1 << 16));
+            long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long hash = WorldModel.computeStateHash(world);
+            long hashNanos = System.nanoTime() - start;
+
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("log: %d entities, log() %.1f ms, writeLog %.1f ms, full hash %.1f ms (%s)%n", lines,
+                        logNanos / 1e6, writeNanos / 1e6, hashNanos / 1e6, hash == world.stateHash ? "matches" : "DIFFERS");
+            }
+        }
+    }
+
+    /*
+       A world of obstacles and houses, where nothing but animation ever
+       happens, run event by event and fast forwarded.
+    */
+    public static void soak(int size, double seconds) throws IOException {
+        Map<String, Double> densities = new HashMap<>();
+        densities.put(Functions.OBSTACLE_KEY, 0.2);
+        densities.put(Functions.HOUSE_KEY, 0.01);
+        String sav = generatedWorld(size, densities);
+
+        VirtualWorld stepped = headlessWorld(sav);
+        long start = System.nanoTime();
+        stepped.update(seconds);
+        EventScheduler.syncAnimations(stepped.scheduler, stepped.world.entities);
+        System.out.printf("soak: %.0fs simulated event by event, %d events, %.1f ms%n", seconds, stepped.scheduler.eventsRun, (System.nanoTime() - start) / 1e6);
+
+        VirtualWorld skipped = headlessWorld(sav);
+        start = System.nanoTime();
+        EventScheduler.fastForward(skipped.scheduler, seconds);
+        EventScheduler.syncAnimations(skipped.scheduler, skipped.world.entities);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        // the queue orders by milliseconds, so a frame due right at the end can be left for the next update
+        Map<String, Integer> frames = new HashMap<>();
+        for (Entity entity : stepped.world.entities) {
+            frames.put(entity.id, entity.imageIndex);
+        }
+        long differ = skipped.world.entities.stream().filter(entity -> frames.get(entity.id) != entity.imageIndex).count();
+        System.out.printf("soak: %.0fs fast forwarded, %d events, %d ms, %d of %d entities on a different frame%n", seconds,
+                skipped.scheduler.eventsRun, millis, differ, skipped.world.entities.size());
+    }
+
+    /*
+       Records SECONDS of a generated world at the default frame rate with
+       the software renderer, once only drawing and once also writing raw
+       frames to a temporary directory, and reports how many times faster
+       than real time that is.
+    */
+    public static void rendering(int size, double seconds) throws IOException {
+        String sav = generatedWorld(size, WorldGenerator.defaultDensities());
+        int frames = (int) Math.round(seconds * FrameExporter.DEFAULT_FRAME_RATE);
+
+        VirtualWorld drawn = headlessWorld(sav);
+        SoftwareRenderer renderer = SoftwareRenderer.create(drawn.view);
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            FrameExporter.renderFrame(drawn, renderer);
+            drawn.update(1.0 / FrameExporter.DEFAULT_FRAME_RATE);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("render: %d frames in %.1f ms, %.1fx real time%n", frames, elapsed * 1e3, seconds / elapsed);
+
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("frames");
+        VirtualWorld exported = headlessWorld(sav);
+        FrameExporter exporter = FrameExporter.create(directory, FrameExporter.RAW, renderer);
+        start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            FrameExporter.export(exporter, FrameExporter.renderFrame(exported, renderer));
+            exported.update(1.0 / FrameExporter.DEFAULT_FRAME_RATE);
+        }
+        FrameExporter.close(exporter);
+        elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("render: %d raw frames written in %.1f ms, %.1fx real time%n", frames, elapsed * 1e3, seconds / elapsed);
+
+        for (int i = 0; i < frames; i++) {
+            java.nio.file.Files.delete(FrameExporter.framePath(exporter, i));
+        }
+        java.nio.file.Files.delete(directory);
+    }
+
+    /*
+       Heap taken by a SIZE by SIZE world with a hundred entities on it and
+       no backgrounds, stored dense and stored sparse, and how long a
+       minute of it takes to simulate either way.
+    */
+    public static void sparseStorage(int size) {
+        StringBuilder entities = new StringBuilder(String.format("Rows:%n%d%nCols:%n%d%nEntities:%n", size, size));
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            entities.append(String.format("dude dude%d %d %d 0.500 0.180 4%n", i, random.nextInt(size), random.nextInt(size)));
+            entities.append(String.format("tree tree%d %d %d 0.250 1.000 3%n", i, random.nextInt(size), random.nextInt(size)));
+        }
+        String sav = entities.toString();
+
+        for (boolean sparse : new boolean[]{false, true}) {
+            System.gc();
+            long before = usedHeap();
+            VirtualWorld virtualWorld = sparse ? headlessWorld(sav, VirtualWorld.SPARSE_FLAG) : headlessWorld(sav);
+            System.gc();
+            long heap = usedHeap() - before;
+            long start = System.nanoTime();
+            virtualWorld.update(60);
+            System.out.printf("sparse: %s %dx%d world takes %.1f MB, 60s simulated in %.1f ms%n", virtualWorld.world.sparse ? "sparse" : "dense",
+                    size, size, heap / 1e6, (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    private static long usedHeap() {
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /*
+       Builds the overview of a generated SIZE by SIZE world, keeps it up
+       to date through a second of simulation and composes the level that
+       fits the default view, against how many tiles drawing the whole
+       world at full size would take.
+    */
+    public static void overview(int size) throws IOException {
+        VirtualWorld virtualWorld = headlessWorld(generatedWorld(size, WorldGenerator.defaultDensities()));
+        long start = System.nanoTime();
+        Overview overview = Overview.create(virtualWorld.world);
+        System.out.printf("overview: built for %dx%d in %.1f ms%n", size, size, (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        virtualWorld.update(1);
+        System.out.printf("overview: 1s simulated with updates in %.1f ms, %d events%n", (System.nanoTime() - start) / 1e6, virtualWorld.scheduler.eventsRun);
+
+        int level = Overview.levelFor(overview, VirtualWorld.VIEW_WIDTH, VirtualWorld.VIEW_HEIGHT);
+        int[] pixels = new int[overview.colors[level].length];
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            start = System.nanoTime();
+            Overview.compose(overview, level, pixels);
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("overview: level %d, %d pixels composed in %.2f ms instead of drawing %d tiles%n", level, pixels.length,
+                        (System.nanoTime() - start) / 1e6, size * size);
+            }
+        }
+    }
+
+    /*
+       Cold image loading (no disk cache): every image decoded one after
+       the other with the old scalar color keying, against the decoder
+       pool with the branch free keying.
+    */
+    public static void imageLoading(String imageList) throws FileNotFoundException {
+        PApplet screen = new VirtualWorld();
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            ImageStore sequential = newStore(imageList, screen);
+            long start = System.nanoTime();
+            for (List<ImageSource> lines : sequential.sources.values()) {
+                for (ImageSource source : lines) {
+                    PImage img = screen.loadImage(source.path);
+                    if (img != null && img.width != -1 && source.keyed) {
+                        scalarSetAlpha(img, source.keyColor, 0);
+                    }
+                }
+            }
+            long sequentialNanos = System.nanoTime() - start;
+
+            ImageStore parallel = newStore(imageList, screen);
+            start = System.nanoTime();
+            ImageStore.loadAllImages(parallel);
+            long parallelNanos = System.nanoTime() - start;
+
+            if (round >= WARMUP_ROUNDS) {
+                System.out.printf("images: sequential %.1f ms, parallel %.1f ms%n", sequentialNanos / 1e6, parallelNanos / 1e6);
+            }
+        }
+    }
+
+    private static ImageStore newStore(String imageList, PApplet screen) throws FileNotFoundException {
+        ImageStore imageStore = new ImageStore(VirtualWorld.createImageColored(VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT, VirtualWorld.DEFAULT_IMAGE_COLOR));
+        try (Scanner in = new Scanner(new File(imageList))) {
+            Functions.loadImages(in, imageStore, screen);
+        }
+        return imageStore;
+    }
+
+    // the color keying loop as it was before it was made branch free
+    private static void scalarSetAlpha(PImage img, int maskColor, int alpha) {
+        int alphaValue = alpha << 24;
+        int nonAlpha = maskColor & Functions.COLOR_MASK;
+        img.format = PApplet.ARGB;
+        img.loadPixels();
+        for (int i = 0; i < img.pixels.length; i++) {
+            if ((img.pixels[i] & Functions.COLOR_MASK) == nonAlpha) {
+                img.pixels[i] = alphaValue | nonAlpha;
+            }
+        }
+        img.updatePixels();
+    }
+}
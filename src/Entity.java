@@ -42,7 +42,7 @@ public final class Entity extends Refactor {
      */
     public Entity(EntityKind kind, String id, Point position, List<PImage> images, int resourceLimit, int resourceCount, double actionPeriod, double animationPeriod, int health, int healthLimit) {
 
-        super(kind,position, images, resourceCount, resourceLimit, actionPeriod, animationPeriod, health, healthLimit);
+        super(kind, id, position, images, resourceCount, resourceLimit, actionPeriod, animationPeriod, health, healthLimit);
     }
     /**
      * Helper method for testing. Preserve this functionality while refactoring.
@@ -57,17 +57,119 @@ public final class Entity extends Refactor {
         if (WorldModel.withinBounds(world, entity.position)) {
             WorldModel.setOccupancyCell(world, entity.position, entity);
             world.entities.add(entity);
+            WorldModel.registerEntity(world, entity);
+            WorldModel.entityChanged(world, entity, entity.position);
+            entity.world = world;
+            WorldModel.rehash(world, entity);
+            if (world.overview != null) {
+                Overview.entityMoved(world.overview, null, entity.position);
+            }
+            if (world.telemetry != null) {
+                Telemetry.entityChanged(world.telemetry, entity);
+            }
         }
     }
 
+    // removes whatever is in the cell first, then moves like tryMoveEntity
     public static void moveEntity(WorldModel world, EventScheduler scheduler, Entity entity, Point pos) {
-        Point oldPos = entity.position;
-        if (WorldModel.withinBounds(world, pos) && !pos.equals(oldPos)) {
-            WorldModel.setOccupancyCell(world, oldPos, null);
+        if (WorldModel.withinBounds(world, pos) && !pos.equals(entity.position)) {
             Optional<Entity> occupant = WorldModel.getOccupant(world, pos);
             occupant.ifPresent(target -> removeEntity(world, scheduler, target));
-            WorldModel.setOccupancyCell(world, pos, entity);
-            entity.position = pos;
+            tryMoveEntity(world, entity, pos);
+        }
+    }
+
+    /*
+       Moves the entity into an empty cell by claiming the new cell before
+       releasing the old one, so the entity is never out of the grid and no
+       two entities ever end up in one cell. Returns false, leaving the
+       entity where it was, if the cell was taken.
+    */
+    public static boolean tryMoveEntity(WorldModel world, Entity entity, Point pos) {
+        if (!WorldModel.withinBounds(world, pos) || !claimMove(world, entity, pos)) {
+            return false;
+        }
+        finishMove(world, entity, pos);
+        return true;
+    }
+
+    /*
+       The part of tryMoveEntity that touches the grid: claims the new cell,
+       then releases the old one, each atomically. Movers whose cells don't
+       overlap can claim their moves from several threads at once; the
+       entity keeps its old position until finishMove.
+    */
+    public static boolean claimMove(WorldModel world, Entity entity, Point pos) {
+        if (!WorldModel.claimCell(world, WorldModel.cellIndex(world, pos), entity)) {
+            return false;
+        }
+        WorldModel.releaseCell(world, WorldModel.cellIndex(world, entity.position), entity);
+        return true;
+    }
+
+    // puts the entity back into its old cell after a claimMove that isn't going to be finished
+    public static void undoMove(WorldModel world, Entity entity, Point pos) {
+        WorldModel.claimCell(world, WorldModel.cellIndex(world, entity.position), entity);
+        WorldModel.releaseCell(world, WorldModel.cellIndex(world, pos), entity);
+    }
+
+    // everything about a claimed move besides the grid, only from the thread that runs the events
+    public static void finishMove(WorldModel world, Entity entity, Point pos) {
+        if (world.overview != null) {
+            Overview.entityMoved(world.overview, entity.position, pos);
+        }
+        entity.position = pos;
+        WorldModel.entityChanged(world, entity, pos);
+        WorldModel.rehash(world, entity);
+        if (world.telemetry != null) {
+            Telemetry.entityChanged(world.telemetry, entity);
+        }
+    }
+
+    /*
+       Makes the entity an entity of another kind where it stands, keeping
+       the same handle: it moves to the other kind's registry, drops its
+       reservations and cached target, and both kinds count as changed.
+       Everything else about the new kind is up to the caller.
+    */
+    public static void changeKind(WorldModel world, Entity entity, EntityKind kind) {
+        WorldModel.unregisterEntity(world, entity);
+        WorldModel.releaseReservations(world, entity);
+        WorldModel.entityChanged(world, entity, entity.position);
+
+        entity.kind = kind;
+        entity.targetKind = null;
+        entity.targetFrom = null;
+        entity.targetVersion = -1;
+
+        WorldModel.registerEntity(world, entity);
+        WorldModel.entityChanged(world, entity, entity.position);
+    }
+
+    /*
+       Turns a tree or sapling into what it withers or grows into. Its
+       events are dropped and its state is what createStump or createTree
+       would have given it.
+    */
+    public static void transformInPlace(WorldModel world, EventScheduler scheduler, Entity entity, EntityKind kind, String id, List<PImage> images, double actionPeriod, double animationPeriod, int health) {
+        EventScheduler.unscheduleAllEvents(scheduler, entity);
+        changeKind(world, entity, kind);
+        if (world.telemetry != null) {
+            Telemetry.entityRemoved(world.telemetry, entity, entity.id);
+        }
+
+        entity.id = id;
+        entity.images = images;
+        entity.imageIndex = 0;
+        entity.actionPeriod = actionPeriod;
+        entity.animationPeriod = animationPeriod;
+        entity.health = health;
+        entity.healthLimit = 0;
+        entity.nextAnimationTime = Double.NaN;
+        entity.coarseActivity = false;
+        WorldModel.rehash(world, entity);
+        if (world.telemetry != null) {
+            Telemetry.entityChanged(world.telemetry, entity);
         }
     }
 
@@ -84,7 +186,19 @@ public final class Entity extends Refactor {
              * debugging purposes. */
             entity.position = new Point(-1, -1);
             world.entities.remove(entity);
+            WorldModel.unregisterEntity(world, entity);
+            WorldModel.releaseReservations(world, entity);
             WorldModel.setOccupancyCell(world, pos, null);
+            WorldModel.entityChanged(world, entity, pos);
+            world.stateHash -= entity.stateHash;
+            entity.stateHash = 0;
+            entity.world = null;
+            if (world.overview != null) {
+                Overview.entityMoved(world.overview, pos, null);
+            }
+            if (world.telemetry != null) {
+                Telemetry.entityRemoved(world.telemetry, entity, entity.id);
+            }
         }
     }
 
@@ -144,12 +258,15 @@ public final class Entity extends Refactor {
     }
 
     public static void drawEntities(WorldView view) {
-        for (Entity entity : view.world.entities) {
-            Point pos = entity.position;
+        for (EntityKind kind : EntityKind.values()) {
+            Entity[] registry = view.world.kindEntities[kind.ordinal()];
+            for (int i = 0; i < view.world.kindCounts[kind.ordinal()]; i++) {
+                Point pos = registry[i].position;
 
-            if (Functions.contains(view.viewport, pos)) {
-                Point viewPoint = Viewport.worldToViewport(view.viewport, pos.x, pos.y);
-                view.screen.image(ImageStore.getCurrentImage(entity), viewPoint.x * view.tileWidth, viewPoint.y * view.tileHeight);
+                if (Functions.contains(view.viewport, pos)) {
+                    Point viewPoint = Viewport.worldToViewport(view.viewport, pos.x, pos.y);
+                    view.screen.image(ImageStore.getCurrentImage(registry[i]), viewPoint.x * view.tileWidth, viewPoint.y * view.tileHeight);
+                }
             }
         }
     }
@@ -15,11 +15,13 @@ public final class Event {
         this.entity = entity;
     }
 
-    public static void removePendingEvent(EventScheduler scheduler, Event event) {
+    /*
+       Returns false when the event was no longer pending, i.e. it has
+       been unscheduled since it was queued.
+    */
+    public static boolean removePendingEvent(EventScheduler scheduler, Event event) {
         List<Event> pending = scheduler.pendingEvents.get(event.entity);
 
-        if (pending != null) {
-            pending.remove(event);
-        }
+        return pending != null && pending.remove(event);
     }
 }
@@ -1,17 +1,54 @@
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Keeps track of events that have been scheduled.
  */
 public final class EventScheduler {
+    // how many events run between checks of the wall-clock budget
+    public static final int BUDGET_CHECK_INTERVAL = 64;
+    // smallest batch of movers worth planning on several threads
+    public static final int PARALLEL_MIN_BATCH = 16;
+
     public PriorityQueue<Event> eventQueue;
     public Map<Entity, List<Event>> pendingEvents;
     public double currentTime;
 
+    // simulated time that was due but not processed because a budget ran out
+    public double lag;
+    // events run so far, for measuring
+    public long eventsRun;
+
+    // animate entities through Entity.nextAnimationTime instead of events
+    public boolean lazyAnimation;
+
+    // full fidelity only inside this area (plus margin), null to simulate everything fully
+    public Viewport region;
+    public int regionMargin;
+    // how many action periods a plant outside the region skips between activities
+    public int regionActivityFactor;
+
+    // reused between batches: animation events, then activity events per EntityKind
+    public List<Event> animationBatch;
+    public List<List<Event>> activityBatches;
+
+    // plan the steps of a batch of movers in parallel, see Action.planActivity
+    public boolean parallel;
+    // planned steps that could be taken as planned, for measuring
+    public long stepsCommitted;
+    // of those, the steps whose cells were claimed on the pool, see claimBatch
+    public long stepsClaimed;
+
     public EventScheduler() {
         this.eventQueue = new PriorityQueue<>(new EventComparator());
         this.pendingEvents = new HashMap<>();
         this.currentTime = 0;
+        this.lag = 0;
+        this.animationBatch = new ArrayList<>();
+        this.activityBatches = new ArrayList<>();
+        for (int i = 0; i < EntityKind.values().length; i++) {
+            this.activityBatches.add(new ArrayList<>());
+        }
     }
 
     public static void scheduleEvent(EventScheduler scheduler, Entity entity, Action action, double afterPeriod) {
@@ -20,32 +57,278 @@ public final class EventScheduler {
         Event event = new Event(action, time, entity);
 
         scheduler.eventQueue.add(event);
+        addPendingEvent(scheduler, event);
+    }
+
+    /*
+       Puts an event that has already run back into the queue, so repeating
+       actions don't allocate a new Event and Action every time.
+    */
+    public static void rescheduleEvent(EventScheduler scheduler, Event event, double afterPeriod) {
+        event.time = scheduler.currentTime + afterPeriod;
 
+        scheduler.eventQueue.add(event);
+        addPendingEvent(scheduler, event);
+    }
+
+    private static void addPendingEvent(EventScheduler scheduler, Event event) {
         // update list of pending events for the given entity
-        List<Event> pending = scheduler.pendingEvents.getOrDefault(entity, new LinkedList<>());
+        List<Event> pending = scheduler.pendingEvents.getOrDefault(event.entity, new LinkedList<>());
         pending.add(event);
-        scheduler.pendingEvents.put(entity, pending);
+        scheduler.pendingEvents.put(event.entity, pending);
     }
 
-    public static void unscheduleAllEvents(EventScheduler scheduler, Entity entity) {
-        List<Event> pending = scheduler.pendingEvents.remove(entity);
+    /*
+       Brings a lazily animated entity's imageIndex up to currentTime. Frame
+       times are accumulated one period at a time exactly like the chain of
+       ANIMATION events would, so the result matches the event-driven mode.
+    */
+    public static void syncAnimation(EventScheduler scheduler, Entity entity) {
+        if (!Double.isNaN(entity.nextAnimationTime)) {
+            double period = Action.getAnimationPeriod(entity);
+            while (entity.nextAnimationTime <= scheduler.currentTime) {
+                ImageStore.nextImage(entity);
+                entity.nextAnimationTime += period;
+            }
+        }
+    }
 
+    public static void syncAnimations(EventScheduler scheduler, Collection<Entity> entities) {
+        for (Entity entity : entities) {
+            syncAnimation(scheduler, entity);
+        }
+    }
+
+    public static boolean inRegion(EventScheduler scheduler, Point pos) {
+        Viewport region = scheduler.region;
+        return region == null || pos.y >= region.row - scheduler.regionMargin && pos.y < region.row + region.numRows + scheduler.regionMargin
+                && pos.x >= region.col - scheduler.regionMargin && pos.x < region.col + region.numCols + scheduler.regionMargin;
+    }
+
+    /*
+       Drops the entity's pending ACTIVITY events but keeps its animation.
+       The dropped events stay in the queue and are skipped when they come
+       up, because they are no longer pending.
+    */
+    public static void unscheduleActivity(EventScheduler scheduler, Entity entity) {
+        List<Event> pending = scheduler.pendingEvents.get(entity);
         if (pending != null) {
+            pending.removeIf(event -> event.action.kind == ActionKind.ACTIVITY);
+        }
+    }
+
+    /*
+       Drops all of the entity's pending events. Like with
+       unscheduleActivity they are left in the queue to be skipped, so
+       this doesn't have to search the queue for them.
+    */
+    public static void unscheduleAllEvents(EventScheduler scheduler, Entity entity) {
+        scheduler.pendingEvents.remove(entity);
+    }
+
+    public static void updateOnTime(EventScheduler scheduler, double time) {
+        updateOnTime(scheduler, time, 0, 0);
+    }
+
+    /*
+       Runs the next time units like updateOnTime, but without a single
+       animation event: every endless animation is switched over to lazy
+       catch-up first (see syncAnimation) and new ones start out lazy, so
+       the scheduler goes straight from one activity to the next. Once
+       synced, imageIndex is the same as if every frame had been an event.
+    */
+    public static void fastForward(EventScheduler scheduler, double time) {
+        for (List<Event> pending : scheduler.pendingEvents.values()) {
+            Iterator<Event> events = pending.iterator();
+            while (events.hasNext()) {
+                Event event = events.next();
+                if (event.action.kind == ActionKind.ANIMATION && event.action.repeatCount == 0 && Action.getAnimationPeriod(event.entity) > 0) {
+                    // the dropped event is skipped when it comes up
+                    event.entity.nextAnimationTime = event.time;
+                    events.remove();
+                }
+            }
+        }
+
+        boolean lazyAnimation = scheduler.lazyAnimation;
+        scheduler.lazyAnimation = true;
+        updateOnTime(scheduler, time);
+        scheduler.lazyAnimation = lazyAnimation;
+    }
+
+    /*
+       When the next pending ACTIVITY event is due, or infinity if there is
+       none. Unscheduled events at the head of the queue are dropped on the
+       way. The queue is only searched when animation events come first.
+    */
+    public static double nextActivityTime(EventScheduler scheduler) {
+        while (!scheduler.eventQueue.isEmpty() && !isPending(scheduler, scheduler.eventQueue.peek())) {
+            scheduler.eventQueue.poll();
+        }
+        Event head = scheduler.eventQueue.peek();
+        if (head == null || head.action.kind == ActionKind.ACTIVITY) {
+            return head == null ? Double.POSITIVE_INFINITY : head.time;
+        }
+
+        double next = Double.POSITIVE_INFINITY;
+        for (List<Event> pending : scheduler.pendingEvents.values()) {
             for (Event event : pending) {
-                scheduler.eventQueue.remove(event);
+                if (event.action.kind == ActionKind.ACTIVITY) {
+                    next = Math.min(next, event.time);
+                }
             }
         }
+        return next;
     }
 
-    public static void updateOnTime(EventScheduler scheduler, double time) {
+    public static boolean isPending(EventScheduler scheduler, Event event) {
+        List<Event> pending = scheduler.pendingEvents.get(event.entity);
+        return pending != null && pending.contains(event);
+    }
+
+    /**
+     * Runs the events due within the next time units, but stops early once
+     * maxEvents events have run or budgetNanos of wall-clock time has passed
+     * (a limit of 0 disables it). Whatever was left over is recorded in lag
+     * and picked up by the next call instead of being run all at once.
+     */
+    public static void updateOnTime(EventScheduler scheduler, double time, int maxEvents, long budgetNanos) {
         double stopTime = scheduler.currentTime + time;
+        long deadline = System.nanoTime() + budgetNanos;
+        int count = 0;
+        int lastCheck = 0;
         while (!scheduler.eventQueue.isEmpty() && scheduler.eventQueue.peek().time <= stopTime) {
-            Event next = scheduler.eventQueue.poll();
-            Event.removePendingEvent(scheduler, next);
-            scheduler.currentTime = next.time;
-            Action.executeAction(next.action, scheduler);
+            if (maxEvents > 0 && count >= maxEvents) {
+                scheduler.lag = stopTime - scheduler.currentTime;
+                return;
+            }
+            if (budgetNanos > 0 && count - lastCheck >= BUDGET_CHECK_INTERVAL) {
+                lastCheck = count;
+                if (System.nanoTime() >= deadline) {
+                    scheduler.lag = stopTime - scheduler.currentTime;
+                    return;
+                }
+            }
+            scheduler.currentTime = scheduler.eventQueue.peek().time;
+            Profiling.SchedulerBatch batch = new Profiling.SchedulerBatch();
+            batch.begin();
+            int events = executeBatch(scheduler);
+            count += events;
+            batch.end();
+            if (batch.shouldCommit()) {
+                batch.time = scheduler.currentTime;
+                batch.events = events;
+                batch.queueDepth = scheduler.eventQueue.size();
+                batch.commit();
+            }
         }
         scheduler.currentTime = stopTime;
+        scheduler.lag = 0;
+    }
+
+    /*
+       Pops every event due at currentTime and runs them grouped: all
+       animation events first, then activity events one EntityKind at a
+       time. An event stays pending until it actually runs, so one that was
+       unscheduled by an earlier event of the same batch is skipped.
+       Returns the number of events popped.
+    */
+    public static int executeBatch(EventScheduler scheduler) {
+        int count = 0;
+        while (!scheduler.eventQueue.isEmpty() && scheduler.eventQueue.peek().time == scheduler.currentTime) {
+            Event next = scheduler.eventQueue.poll();
+            if (next.action.kind == ActionKind.ANIMATION) {
+                scheduler.animationBatch.add(next);
+            } else {
+                scheduler.activityBatches.get(next.entity.kind.ordinal()).add(next);
+            }
+            count++;
+        }
+
+        for (Event event : scheduler.animationBatch) {
+            if (Event.removePendingEvent(scheduler, event)) {
+                Action.executeAnimationEvent(event, scheduler);
+                scheduler.eventsRun++;
+            }
+        }
+        scheduler.animationBatch.clear();
+
+        for (int kind = 0; kind < scheduler.activityBatches.size(); kind++) {
+            List<Event> batch = scheduler.activityBatches.get(kind);
+            MovePlan[] plans = scheduler.parallel && batch.size() >= PARALLEL_MIN_BATCH && FlowField.moves(EntityKind.values()[kind]) ?
+                    planBatch(batch) : null;
+            boolean[] claimed = plans != null ? claimBatch(batch, plans) : null;
+            for (int i = 0; i < batch.size(); i++) {
+                Event event = batch.get(i);
+                boolean wasClaimed = claimed != null && claimed[i];
+                if (Event.removePendingEvent(scheduler, event)) {
+                    if (wasClaimed && Action.commitClaimedPlan(plans[i], event.action, scheduler)) {
+                        scheduler.stepsCommitted++;
+                        scheduler.stepsClaimed++;
+                    } else if (!wasClaimed && plans != null && plans[i] != null && Action.commitPlan(plans[i], event.action, scheduler)) {
+                        scheduler.stepsCommitted++;
+                    } else {
+                        Action.executeActivityAction(event.action, scheduler);
+                    }
+                    scheduler.eventsRun++;
+                } else if (wasClaimed) {
+                    Entity.undoMove(event.action.world, event.entity, plans[i].to);
+                }
+            }
+            batch.clear();
+        }
+
+        return count;
+    }
+
+    /*
+       Plans every event of a batch of movers on the common fork join pool.
+       Nothing writes to the world meanwhile. Steps claimed by claimBatch
+       are then finished, and all other plans committed, one at a time in
+       batch order, so where two movers want the same cell the earlier one
+       gets it and the later one runs its activity again against the world
+       as it is then. The result is the same as running the batch one
+       event at a time.
+    */
+    private static MovePlan[] planBatch(List<Event> batch) {
+        MovePlan[] plans = new MovePlan[batch.size()];
+        IntStream.range(0, plans.length).parallel()
+                .forEach(i -> plans[i] = Action.planActivity(batch.get(i).entity, batch.get(i).action.world));
+        return plans;
+    }
+
+    /*
+       Claims, on the common fork join pool, the cells of every planned step
+       that no other event of the batch can get in the way of. Whatever an
+       activity of a mover does, it only looks at and changes its own cell
+       and the four next to it, so a step is claimed when none of those
+       five cells is one of another event's five. The claimed steps then
+       can't depend on the order the batch runs in, except through the
+       targets, which commitClaimedPlan checks.
+    */
+    private static boolean[] claimBatch(List<Event> batch, MovePlan[] plans) {
+        WorldModel world = batch.get(0).action.world;
+        int[] offsets = {0, 1, -1, world.stride, -world.stride};
+        Map<Integer, Integer> uses = new HashMap<>();
+        for (Event event : batch) {
+            int index = WorldModel.cellIndex(world, event.entity.position);
+            for (int offset : offsets) {
+                uses.merge(index + offset, 1, Integer::sum);
+            }
+        }
+
+        boolean[] claimed = new boolean[plans.length];
+        IntStream.range(0, plans.length).parallel().forEach(i -> {
+            Entity entity = batch.get(i).entity;
+            int index = WorldModel.cellIndex(world, entity.position);
+            for (int offset : offsets) {
+                if (uses.get(index + offset) != 1) {
+                    return;
+                }
+            }
+            claimed[i] = plans[i] != null && Entity.claimMove(world, entity, plans[i].to);
+        });
+        return claimed;
     }
 
 
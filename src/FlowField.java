@@ -0,0 +1,281 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distance to the nearest entity of some target kinds for every cell of
+ * the world, found with one breadth first search from all targets at
+ * once. Every entity heading for those kinds shares the field and moves
+ * by looking up its best neighbor instead of planning its own path.
+ *
+ * Only entities that don't move shape the field: dudes and fairies are
+ * in each other's way for a moment at most, so they are only checked
+ * when taking a step. When a non-moving entity is added or removed the
+ * field is repaired around that cell the next time it is used, and only
+ * rebuilt from scratch after a large number of changes.
+ */
+public final class FlowField {
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    public List<EntityKind> targets;
+    // dudes walk over stumps, fairies don't
+    public boolean trampleStumps;
+    // indexed by WorldModel.cellIndex
+    public int[] distance;
+
+    // cells whose occupant changed since the field was last brought up to date
+    public int[] dirtyCells;
+    public int dirtyCount;
+    public boolean rebuild;
+
+    // scratch space for repair: a cell is marked affected when it holds the current stamp
+    public int[] affected;
+    public int stamp;
+    // scratch space for build and repair, kept between calls so neither allocates once grown
+    public int[] queue = new int[16];
+    public long[] seeds = new long[16];
+
+    public FlowField(List<EntityKind> targets, boolean trampleStumps) {
+        this.targets = targets;
+        this.trampleStumps = trampleStumps;
+        this.dirtyCells = new int[64];
+        this.rebuild = true;
+    }
+
+    public static FlowField get(WorldModel world, List<EntityKind> targets, boolean trampleStumps) {
+        FlowField field = world.flowFields.computeIfAbsent(targets, kinds -> new FlowField(kinds, trampleStumps));
+        if (field.rebuild) {
+            build(field, world);
+            field.rebuild = false;
+        } else {
+            for (int i = 0; i < field.dirtyCount; i++) {
+                repair(field, world, field.dirtyCells[i]);
+            }
+        }
+        field.dirtyCount = 0;
+        return field;
+    }
+
+    /*
+       Called by WorldModel for every cell a non-moving entity entered or
+       left. Past a sixteenth of the world a full rebuild is cheaper than
+       repairing cell by cell.
+    */
+    public static void cellChanged(FlowField field, WorldModel world, int index) {
+        if (field.rebuild) {
+            return;
+        }
+        if (field.dirtyCount > WorldModel.cellCount(world) / 16) {
+            field.rebuild = true;
+            return;
+        }
+        if (field.dirtyCount == field.dirtyCells.length) {
+            field.dirtyCells = Arrays.copyOf(field.dirtyCells, field.dirtyCount * 2);
+        }
+        field.dirtyCells[field.dirtyCount++] = index;
+    }
+
+    public static boolean moves(EntityKind kind) {
+        return kind == EntityKind.DUDE_FULL || kind == EntityKind.DUDE_NOT_FULL || kind == EntityKind.FAIRY;
+    }
+
+    public static void build(FlowField field, WorldModel world) {
+        int cells = WorldModel.cellCount(world);
+        if (field.distance == null || field.distance.length != cells) {
+            field.distance = new int[cells];
+        }
+        int[] distance = field.distance;
+        Arrays.fill(distance, UNREACHABLE);
+
+        if (field.queue.length < cells) {
+            field.queue = new int[cells];
+        }
+        int[] queue = field.queue;
+        int head = 0;
+        int tail = 0;
+        for (EntityKind kind : field.targets) {
+            Entity[] registry = world.kindEntities[kind.ordinal()];
+            for (int i = 0; i < world.kindCounts[kind.ordinal()]; i++) {
+                int index = WorldModel.cellIndex(world, registry[i].position);
+                distance[index] = 0;
+                queue[tail++] = index;
+            }
+        }
+
+        int[] neighbors = {1, -1, world.stride, -world.stride};
+        while (head < tail) {
+            int index = queue[head++];
+            int next = distance[index] + 1;
+            for (int offset : neighbors) {
+                int neighbor = index + offset;
+                if (distance[neighbor] == UNREACHABLE && passable(field, world, neighbor)) {
+                    distance[neighbor] = next;
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+    }
+
+    /*
+       Brings the field up to date after the occupant of one cell changed.
+       First every cell whose distance may have depended on the old state
+       of the cell is found: going outwards one distance at a time, a cell
+       is affected if all its neighbors one step closer are affected. Those
+       cells are cleared and then filled in again from their unaffected
+       surroundings and from the changed cell itself, which also carries
+       any shorter distances the change created further out.
+    */
+    public static void repair(FlowField field, WorldModel world, int start) {
+        int[] distance = field.distance;
+        int[] neighbors = {1, -1, world.stride, -world.stride};
+        if (field.affected == null || field.affected.length != distance.length) {
+            field.affected = new int[distance.length];
+            field.stamp = 0;
+        }
+        int stamp = ++field.stamp;
+
+        int[] queue = field.queue;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        field.affected[start] = stamp;
+        while (head < tail) {
+            int cell = queue[head++];
+            if (distance[cell] == UNREACHABLE) {
+                continue;
+            }
+            for (int offset : neighbors) {
+                int neighbor = cell + offset;
+                if (field.affected[neighbor] != stamp && distance[neighbor] == distance[cell] + 1 && !supported(field, world, neighbor)) {
+                    field.affected[neighbor] = stamp;
+                    if (tail == queue.length) {
+                        queue = field.queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+
+        // seeds sorted by distance, merged with the cells they reach, which
+        // come out of the queue in distance order since every step costs one
+        if (field.seeds.length < tail) {
+            field.seeds = new long[queue.length];
+        }
+        long[] seeds = field.seeds;
+        int seedCount = 0;
+        for (int i = 0; i < tail; i++) {
+            distance[queue[i]] = UNREACHABLE;
+        }
+        for (int i = 0; i < tail; i++) {
+            int cell = queue[i];
+            int best = UNREACHABLE;
+            if (isTarget(field, world, cell)) {
+                best = 0;
+            } else if (passable(field, world, cell)) {
+                for (int offset : neighbors) {
+                    if (distance[cell + offset] != UNREACHABLE) {
+                        best = Math.min(best, distance[cell + offset] + 1);
+                    }
+                }
+            }
+            if (best != UNREACHABLE) {
+                seeds[seedCount++] = ((long) best << 32) | cell;
+            }
+        }
+        Arrays.sort(seeds, 0, seedCount);
+
+        head = 0;
+        tail = 0;
+        int nextSeed = 0;
+        while (nextSeed < seedCount || head < tail) {
+            int cell;
+            int d;
+            if (head == tail || nextSeed < seedCount && (int) (seeds[nextSeed] >>> 32) <= distance[queue[head]]) {
+                cell = (int) seeds[nextSeed];
+                d = (int) (seeds[nextSeed++] >>> 32);
+                if (d >= distance[cell]) {
+                    continue;
+                }
+                distance[cell] = d;
+            } else {
+                cell = queue[head++];
+                d = distance[cell];
+            }
+            for (int offset : neighbors) {
+                int neighbor = cell + offset;
+                if (distance[neighbor] > d + 1 && passable(field, world, neighbor)) {
+                    distance[neighbor] = d + 1;
+                    if (tail == queue.length) {
+                        queue = field.queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+    }
+
+    // whether some unaffected neighbor one step closer still leads to a target
+    private static boolean supported(FlowField field, WorldModel world, int index) {
+        int[] neighbors = {1, -1, world.stride, -world.stride};
+        for (int offset : neighbors) {
+            int neighbor = index + offset;
+            if (field.affected[neighbor] != field.stamp && field.distance[neighbor] == field.distance[index] - 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isTarget(FlowField field, WorldModel world, int index) {
+        Entity occupant = WorldModel.occupantAt(world, index);
+        return occupant != null && field.targets.contains(occupant.kind);
+    }
+
+    // whether the cell can ever be walked through, ignoring whoever is passing by
+    public static boolean passable(FlowField field, WorldModel world, int index) {
+        if (!WorldModel.isBlocked(world, index)) {
+            return true;
+        }
+        Entity occupant = WorldModel.occupantAt(world, index);
+        if (occupant == null) {
+            // only the border is blocked without an occupant
+            return false;
+        }
+        return moves(occupant.kind) || field.trampleStumps && occupant.kind == EntityKind.STUMP;
+    }
+
+    /*
+       Returns a target next to the entity if there is one. Otherwise
+       moves the entity one step downhill in the field, to the first free
+       neighbor with a lower distance (right, left, down, up), and returns
+       null. Entities that can't reach any target stay where they are.
+    */
+    public static Entity approach(FlowField field, WorldModel world, EventScheduler scheduler, Entity entity) {
+        int index = WorldModel.cellIndex(world, entity.position);
+        int[] neighbors = {1, -1, world.stride, -world.stride};
+        int[] dx = {1, -1, 0, 0};
+        int[] dy = {0, 0, 1, -1};
+
+        if (field.distance[index] == 1) {
+            for (int i = 0; i < neighbors.length; i++) {
+                Entity occupant = WorldModel.occupantAt(world, index + neighbors[i]);
+                if (field.distance[index + neighbors[i]] == 0 && occupant != null && field.targets.contains(occupant.kind)) {
+                    return occupant;
+                }
+            }
+        }
+
+        for (int i = 0; i < neighbors.length; i++) {
+            int neighbor = index + neighbors[i];
+            if (field.distance[neighbor] < field.distance[index] && field.distance[neighbor] > 0 && free(field, world, neighbor)) {
+                Entity.moveEntity(world, scheduler, entity, new Point(entity.position.x + dx[i], entity.position.y + dy[i]));
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean free(FlowField field, WorldModel world, int index) {
+        Entity occupant = WorldModel.occupantAt(world, index);
+        return occupant == null && !WorldModel.isBlocked(world, index) || occupant != null && field.trampleStumps && occupant.kind == EntityKind.STUMP;
+    }
+}
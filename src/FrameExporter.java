@@ -0,0 +1,189 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes frames from a SoftwareRenderer to a directory as a numbered
+ * sequence, frame000000.png, frame000001.png and so on. Raw frames are
+ * the bare ARGB ints, big endian, row by row, with nothing around them.
+ *
+ * Frames are written on a thread of their own while the next frame is
+ * drawn. At most one frame is being written at a time, which is what lets
+ * the renderer get by with two buffers.
+ */
+public final class FrameExporter {
+    public static final String PNG = "png";
+    public static final String RAW = "raw";
+    public static final int DEFAULT_FRAME_RATE = 30;
+
+    public Path directory;
+    public String format;
+    public int width;
+    public int height;
+    public int frames;
+
+    public ExecutorService writer;
+    public Future<?> pending;
+    // reused between raw frames
+    public ByteBuffer bytes;
+    // reused between png frames, backed by the int[] that is encoded
+    public BufferedImage image;
+
+    public FrameExporter(Path directory, String format, int width, int height) {
+        this.directory = directory;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "frame-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static FrameExporter create(Path directory, String format, SoftwareRenderer renderer) throws IOException {
+        if (!format.equals(PNG) && !format.equals(RAW)) {
+            throw new IllegalArgumentException("Unknown frame format " + format + ", expected " + PNG + " or " + RAW);
+        }
+        Files.createDirectories(directory);
+        return new FrameExporter(directory, format, renderer.width, renderer.height);
+    }
+
+    public static Path framePath(FrameExporter exporter, int frame) {
+        return exporter.directory.resolve(String.format("frame%06d.%s", frame, exporter.format));
+    }
+
+    /*
+       Starts writing the frame once the previous one is written. The
+       frame must not be drawn into again until the next call returns.
+    */
+    public static void export(FrameExporter exporter, int[] frame) throws IOException {
+        finish(exporter);
+        Path path = framePath(exporter, exporter.frames++);
+        exporter.pending = exporter.writer.submit(() -> {
+            try {
+                write(exporter, frame, path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // waits for the frame being written, if any
+    public static void finish(FrameExporter exporter) throws IOException {
+        if (exporter.pending == null) {
+            return;
+        }
+        try {
+            exporter.pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing frames", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException io ? io.getCause() : new IOException(e.getCause());
+        } finally {
+            exporter.pending = null;
+        }
+    }
+
+    public static void close(FrameExporter exporter) throws IOException {
+        try {
+            finish(exporter);
+        } finally {
+            exporter.writer.shutdown();
+        }
+    }
+
+    private static void write(FrameExporter exporter, int[] frame, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (exporter.format.equals(RAW)) {
+                if (exporter.bytes == null) {
+                    exporter.bytes = ByteBuffer.allocateDirect(frame.length * Integer.BYTES);
+                }
+                ByteBuffer bytes = exporter.bytes.clear();
+                IntBuffer ints = bytes.asIntBuffer();
+                ints.put(frame);
+                bytes.limit(ints.position() * Integer.BYTES);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } else {
+                if (exporter.image == null) {
+                    exporter.image = new BufferedImage(exporter.width, exporter.height, BufferedImage.TYPE_INT_ARGB);
+                }
+                int[] pixels = ((DataBufferInt) exporter.image.getRaster().getDataBuffer()).getData();
+                System.arraycopy(frame, 0, pixels, 0, pixels.length);
+                OutputStream out = Channels.newOutputStream(channel);
+                ImageIO.write(exporter.image, PNG, out);
+            }
+        }
+    }
+
+    /*
+       Runs a world without a window and writes what the viewport shows.
+       Takes the number of simulated seconds, the output directory and
+       optionally -png or -raw and -fps=N, followed by the usual
+       VirtualWorld arguments. Simulated time is only limited by how fast
+       frames can be drawn and written.
+    */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: FrameExporter SECONDS DIRECTORY [-png|-raw] [-fps=N] [world arguments...]");
+            return;
+        }
+        double seconds = Double.parseDouble(args[0]);
+        Path directory = Paths.get(args[1]);
+        String format = PNG;
+        int frameRate = DEFAULT_FRAME_RATE;
+        List<String> worldArgs = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-" + PNG) || args[i].equals("-" + RAW)) {
+                format = args[i].substring(1);
+            } else if (args[i].startsWith("-fps=")) {
+                frameRate = Integer.parseInt(args[i].substring("-fps=".length()));
+            } else {
+                worldArgs.add(args[i]);
+            }
+        }
+
+        VirtualWorld virtualWorld = VirtualWorld.headlessWorld(worldArgs.toArray(new String[0]));
+        SoftwareRenderer renderer = SoftwareRenderer.create(virtualWorld.view);
+        FrameExporter exporter = create(directory, format, renderer);
+
+        long start = System.nanoTime();
+        int frames = (int) Math.round(seconds * frameRate);
+        for (int i = 0; i < frames; i++) {
+            export(exporter, renderFrame(virtualWorld, renderer));
+            virtualWorld.update(1.0 / frameRate);
+        }
+        close(exporter);
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames of %.0fs in %.1fs, %.1fx real time%n", frames, seconds, elapsed, seconds / elapsed);
+    }
+
+    // brings what is visible up to the scheduler's time and draws it
+    public static int[] renderFrame(VirtualWorld virtualWorld, SoftwareRenderer renderer) {
+        virtualWorld.syncVisibleAnimations();
+        Background.advanceFrames(virtualWorld.world, virtualWorld.scheduler.currentTime);
+        return SoftwareRenderer.render(renderer, virtualWorld.view);
+    }
+}
@@ -19,6 +19,9 @@ public final class Functions {
 
     public static final List<String> PATH_KEYS = new ArrayList<>(Arrays.asList("bridge", "dirt", "dirt_horiz", "dirt_vert_left", "dirt_vert_right", "dirt_bot_left_corner", "dirt_bot_right_up", "dirt_vert_left_bot"));
 
+    // seconds per frame of backgrounds with more than one image
+    public static final double BACKGROUND_ANIMATION_PERIOD = 0.500;
+
     public static final double SAPLING_ACTION_ANIMATION_PERIOD = 1.000; // have to be in sync since grows and gains health at same time
     public static final int SAPLING_HEALTH_LIMIT = 5;
 
@@ -160,15 +163,21 @@ public final class Functions {
 
 
     public static void load(WorldModel world, Scanner saveFile, ImageStore imageStore, Background defaultBackground){
+        Profiling.LoadWorld event = new Profiling.LoadWorld();
+        event.begin();
         parseSaveFile(world, saveFile, imageStore, defaultBackground);
-        if(world.background == null){
-            world.background = new Background[world.numRows][world.numCols];
-            for (Background[] row : world.background)
-                Arrays.fill(row, defaultBackground);
+        event.end();
+        if(world.defaultBackground == null){
+            Background.initBackground(world, defaultBackground);
+        }
+        if(world.entities == null){
+            WorldModel.resetEntities(world);
         }
-        if(world.occupancy == null){
-            world.occupancy = new Entity[world.numRows][world.numCols];
-            world.entities = new HashSet<>();
+        if(event.shouldCommit()){
+            event.rows = world.numRows;
+            event.cols = world.numCols;
+            event.entities = world.entities.size();
+            event.commit();
         }
     }
     public static void parseSaveFile(WorldModel world, Scanner saveFile, ImageStore imageStore, Background defaultBackground){
@@ -182,11 +191,8 @@ public final class Functions {
                 headerLine = lineCounter;
                 lastHeader = line;
                 switch (line){
-                    case "Backgrounds:" -> world.background = new Background[world.numRows][world.numCols];
-                    case "Entities:" -> {
-                        world.occupancy = new Entity[world.numRows][world.numCols];
-                        world.entities = new HashSet<>();
-                    }
+                    case "Backgrounds:" -> Background.initBackground(world, defaultBackground);
+                    case "Entities:" -> WorldModel.resetEntities(world);
                 }
             }else{
                 switch (lastHeader){
@@ -209,12 +215,16 @@ public final class Functions {
     public static void setAlpha(PImage img, int maskColor, int alpha) {
         int alphaValue = alpha << 24;
         int nonAlpha = maskColor & COLOR_MASK;
+        int keyed = alphaValue | nonAlpha;
         img.format = PApplet.ARGB;
         img.loadPixels();
-        for (int i = 0; i < img.pixels.length; i++) {
-            if ((img.pixels[i] & COLOR_MASK) == nonAlpha) {
-                img.pixels[i] = alphaValue | nonAlpha;
-            }
+        int[] pixels = img.pixels;
+        // branch free so the JIT can turn it into SIMD code: keep is all ones
+        // unless the pixel's color matches, in which case it is zero
+        for (int i = 0; i < pixels.length; i++) {
+            int diff = (pixels[i] ^ nonAlpha) & COLOR_MASK;
+            int keep = (diff | -diff) >> 31;
+            pixels[i] = (pixels[i] & keep) | (keyed & ~keep);
         }
         img.updatePixels();
     }
@@ -228,10 +238,11 @@ public final class Functions {
 
 
     public static void loadImages(Scanner in, ImageStore imageStore, PApplet screen) {
+        imageStore.screen = screen;
         int lineNumber = 0;
         while (in.hasNextLine()) {
             try {
-                ImageStore.processImageLine(imageStore.images, in.nextLine(), screen);
+                ImageStore.processImageLine(imageStore, in.nextLine());
             } catch (NumberFormatException e) {
                 System.out.printf("Image format error on line %d\n", lineNumber);
             }
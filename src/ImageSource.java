@@ -0,0 +1,19 @@
+/**
+ * One line of the image list that hasn't been decoded yet: the key it is
+ * listed under, the file to decode, and the color to make transparent if
+ * the line gives one.
+ */
+public final class ImageSource {
+    public String key;
+    public String path;
+    public boolean keyed;
+    // opaque ARGB, only meaningful when keyed
+    public int keyColor;
+
+    public ImageSource(String key, String path, boolean keyed, int keyColor) {
+        this.key = key;
+        this.path = path;
+        this.keyed = keyed;
+        this.keyColor = keyColor;
+    }
+}
@@ -1,23 +1,57 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import processing.core.PApplet;
 import processing.core.PImage;
 
 public final class ImageStore {
+    // written in front of every cached image, bump when the layout changes
+    public static final int CACHE_MAGIC = 0x494d4731;
+    public static final int CACHE_HEADER_INTS = 8;
+
+    // shared by every store, created the first time more than one image needs decoding
+    private static ExecutorService decoders;
+
     public Map<String, List<PImage>> images;
     public List<PImage> defaultImages;
 
+    // image list lines per key that haven't been decoded yet, in list order
+    public Map<String, List<ImageSource>> sources;
+    public PApplet screen;
+    // where decoded and color keyed pixels are kept between runs, null to disable
+    public File cacheDir;
+
     public ImageStore(PImage defaultImage) {
         this.images = new HashMap<>();
+        this.sources = new HashMap<>();
         defaultImages = new LinkedList<>();
         defaultImages.add(defaultImage);
     }
 
     public static void nextImage(Entity entity) {
         entity.imageIndex = entity.imageIndex + 1;
+        if (entity.world != null) {
+            WorldModel.rehash(entity.world, entity);
+        }
     }
 
     public static PImage getCurrentImage(Object object) {
@@ -30,29 +64,205 @@ public final class ImageStore {
         }
     }
 
+    /*
+       Images are decoded the first time their key is asked for, so keys
+       the world never uses cost nothing at startup.
+    */
     public static List<PImage> getImageList(ImageStore imageStore, String key) {
-        return imageStore.images.getOrDefault(key, imageStore.defaultImages);
+        List<PImage> imgs = imageStore.images.get(key);
+        if (imgs == null && imageStore.sources.containsKey(key)) {
+            loadImages(imageStore, List.of(key));
+            imgs = imageStore.images.get(key);
+        }
+        return imgs == null || imgs.isEmpty() ? imageStore.defaultImages : imgs;
     }
 
-    public static void processImageLine(Map<String, List<PImage>> images, String line, PApplet screen) {
+    /*
+       Decodes every not yet decoded image of the given keys, spread over a
+       pool of decoder threads. The results are put into images in the
+       order of the image list no matter which decode finishes first.
+    */
+    public static void loadImages(ImageStore imageStore, Collection<String> keys) {
+        List<ImageSource> lines = new ArrayList<>();
+        for (String key : keys) {
+            List<ImageSource> keyLines = imageStore.sources.remove(key);
+            if (keyLines != null) {
+                lines.addAll(keyLines);
+            }
+        }
+
+        List<PImage> decoded = new ArrayList<>(lines.size());
+        if (lines.size() == 1) {
+            decoded.add(loadImage(imageStore, lines.get(0)));
+        } else if (!lines.isEmpty()) {
+            List<Future<PImage>> futures = new ArrayList<>(lines.size());
+            for (ImageSource source : lines) {
+                futures.add(decoderPool().submit(() -> loadImage(imageStore, source)));
+            }
+            for (Future<PImage> future : futures) {
+                try {
+                    decoded.add(future.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException("image decoding failed", e);
+                }
+            }
+        }
+
+        for (int i = 0; i < lines.size(); i++) {
+            if (decoded.get(i) != null) {
+                getImages(imageStore.images, lines.get(i).key).add(decoded.get(i));
+            }
+        }
+    }
+
+    // loads everything that is still pending, for when hitches mid-run are worse than a slower start
+    public static void loadAllImages(ImageStore imageStore) {
+        loadImages(imageStore, new ArrayList<>(imageStore.sources.keySet()));
+    }
+
+    private static synchronized ExecutorService decoderPool() {
+        if (decoders == null) {
+            decoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "image-decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return decoders;
+    }
+
+    /*
+       Records an image list line for later decoding. The color key is
+       parsed right away, so format errors still show up while loading and
+       decoding doesn't have to parse it again.
+    */
+    public static void processImageLine(ImageStore imageStore, String line) {
         String[] attrs = line.split("\\s");
         if (attrs.length >= 2) {
-            String key = attrs[0];
-            PImage img = screen.loadImage(attrs[1]);
-            if (img != null && img.width != -1) {
-                List<PImage> imgs = getImages(images, key);
-                imgs.add(img);
-
-                if (attrs.length >= Functions.KEYED_IMAGE_MIN) {
-                    int r = Integer.parseInt(attrs[Functions.returnRedIDX()]);
-                    int g = Integer.parseInt(attrs[Functions.returnGreenIDX()]);
-                    int b = Integer.parseInt(attrs[Functions.returnBlueIDX()]);
-                    Functions.setAlpha(img, screen.color(r, g, b), 0);
-                }
+            boolean keyed = attrs.length >= Functions.KEYED_IMAGE_MIN;
+            int keyColor = 0;
+            if (keyed) {
+                int r = Integer.parseInt(attrs[Functions.returnRedIDX()]);
+                int g = Integer.parseInt(attrs[Functions.returnGreenIDX()]);
+                int b = Integer.parseInt(attrs[Functions.returnBlueIDX()]);
+                keyColor = keyColor(r, g, b);
             }
+            imageStore.images.remove(attrs[0]);
+            imageStore.sources.computeIfAbsent(attrs[0], k -> new LinkedList<>()).add(new ImageSource(attrs[0], attrs[1], keyed, keyColor));
         }
     }
 
+    public static PImage loadImage(ImageStore imageStore, ImageSource source) {
+        File file = new File(source.path);
+        File cached = imageStore.cacheDir == null ? null : cacheFile(imageStore, source);
+        if (cached != null) {
+            PImage img = readCachedImage(cached, file);
+            if (img != null) {
+                return img;
+            }
+        }
+
+        PImage img = imageStore.screen.loadImage(source.path);
+        if (img == null || img.width == -1) {
+            return null;
+        }
+        if (source.keyed) {
+            Functions.setAlpha(img, source.keyColor, 0);
+        }
+        if (cached != null) {
+            writeCachedImage(cached, file, img);
+        }
+        return img;
+    }
+
+    /*
+       The same color PApplet.color(r, g, b) gives in the default color
+       mode, worked out here because loadImage runs on decoder threads and
+       PApplet.color goes through the shared PGraphics' scratch fields.
+    */
+    public static int keyColor(int r, int g, int b) {
+        r = Math.max(0, Math.min(255, r));
+        g = Math.max(0, Math.min(255, g));
+        b = Math.max(0, Math.min(255, b));
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    /*
+       Cache entries are named by a hash of the full source path and the
+       key color, so two sources never share an entry however alike their
+       paths are. The file name is kept in front for finding them by hand.
+    */
+    public static File cacheFile(ImageStore imageStore, ImageSource source) {
+        String key = source.keyed ? source.path + '\n' + Integer.toHexString(source.keyColor) : source.path;
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String name = new File(source.path).getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(imageStore.cacheDir, name + '_' + HexFormat.of().formatHex(hash) + ".argb");
+    }
+
+    /*
+       Cached images start with a header of magic, source length and
+       modification time (two ints each), format, width and height,
+       followed by the pixels. A cache entry for a source file that has
+       changed since is ignored.
+    */
+    public static PImage readCachedImage(File cached, File source) {
+        if (!cached.isFile()) {
+            return null;
+        }
+        try {
+            IntBuffer data = ByteBuffer.wrap(Files.readAllBytes(cached.toPath())).asIntBuffer();
+            if (data.remaining() < CACHE_HEADER_INTS || data.get() != CACHE_MAGIC
+                    || readLong(data) != source.length() || readLong(data) != source.lastModified()) {
+                return null;
+            }
+            int format = data.get();
+            int width = data.get();
+            int height = data.get();
+            if (data.remaining() != width * height) {
+                return null;
+            }
+            PImage img = new PImage(width, height, format);
+            data.get(img.pixels);
+            img.updatePixels();
+            return img;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void writeCachedImage(File cached, File source, PImage img) {
+        img.loadPixels();
+        ByteBuffer bytes = ByteBuffer.allocate((CACHE_HEADER_INTS + img.pixels.length) * Integer.BYTES);
+        IntBuffer data = bytes.asIntBuffer();
+        data.put(CACHE_MAGIC);
+        writeLong(data, source.length());
+        writeLong(data, source.lastModified());
+        data.put(img.format).put(img.width).put(img.height);
+        data.put(img.pixels);
+        try {
+            Files.createDirectories(cached.getParentFile().toPath());
+            // write to a temporary file first so a reader never sees half an image
+            Path temp = Files.createTempFile(cached.getParentFile().toPath(), cached.getName(), ".tmp");
+            Files.write(temp, bytes.array());
+            Files.move(temp, cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache image: " + e.getMessage());
+        }
+    }
+
+    private static long readLong(IntBuffer data) {
+        return ((long) data.get() << 32) | (data.get() & 0xffffffffL);
+    }
+
+    private static void writeLong(IntBuffer data, long value) {
+        data.put((int) (value >>> 32)).put((int) value);
+    }
+
     public static List<PImage> getImages(Map<String, List<PImage>> images, String key) {
         return images.computeIfAbsent(key, k -> new LinkedList<>());
     }
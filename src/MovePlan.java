@@ -0,0 +1,20 @@
+/**
+ * A step a dude or fairy worked out ahead of its activity, while the
+ * world was only being read. It is only taken if nothing the step
+ * depended on has changed in the meantime, see Action.commitPlan.
+ */
+public final class MovePlan {
+    public Point from;
+    public Point to;
+    // the cell the entity would have stepped into first but was blocked, or -1
+    public int passedOver;
+    // versions of the target kinds added up, when the target was picked
+    public long targetVersion;
+
+    public MovePlan(Point from, Point to, int passedOver, long targetVersion) {
+        this.from = from;
+        this.to = to;
+        this.passedOver = passedOver;
+        this.targetVersion = targetVersion;
+    }
+}
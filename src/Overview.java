@@ -0,0 +1,243 @@
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * The zoomed out view of the whole world, drawn one pixel per block of
+ * cells instead of one image per cell. Two pyramids are kept for it, both
+ * halving the world in each direction per level until a single block is
+ * left: the average color of the background tiles in every block, and the
+ * number of entities in every block.
+ *
+ * Both are built once, when the overview is first shown, and from then
+ * on kept up to date a cell at a time as backgrounds change and entities
+ * come, go and move, touching one block per level. Drawing picks the
+ * most detailed level that fits the screen, so a frame costs at most one
+ * pass over the screen's pixels however large the world is.
+ */
+public final class Overview {
+    // entities are blended over the background by how much of their block they fill
+    public static final int ENTITY_COLOR = 0xd04020;
+    public static final int VIEWPORT_COLOR = 0xffffffff;
+
+    public int numRows;
+    public int numCols;
+    // per level, row major, level 0 being single cells
+    public int[][] colors;
+    public int[][] counts;
+    public int[] levelRows;
+    public int[] levelCols;
+
+    // the level image of the last draw, recomposed when anything changed since
+    public PImage image;
+    public int imageLevel = -1;
+    public boolean changed;
+
+    public Overview(int numRows, int numCols) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        int levels = 1;
+        while ((numRows - 1) >> (levels - 1) > 0 || (numCols - 1) >> (levels - 1) > 0) {
+            levels++;
+        }
+        this.colors = new int[levels][];
+        this.counts = new int[levels][];
+        this.levelRows = new int[levels];
+        this.levelCols = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            levelRows[level] = (numRows + (1 << level) - 1) >> level;
+            levelCols[level] = (numCols + (1 << level) - 1) >> level;
+            colors[level] = new int[levelRows[level] * levelCols[level]];
+            counts[level] = new int[levelRows[level] * levelCols[level]];
+        }
+    }
+
+    /*
+       Builds the overview of the world and attaches it, so the world keeps
+       it current from now on.
+    */
+    public static Overview create(WorldModel world) {
+        Overview overview = new Overview(world.numRows, world.numCols);
+        // cells of a tile type share their Background, so each type is averaged once
+        Map<Background, Integer> typeColors = new IdentityHashMap<>();
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                overview.colors[0][row * world.numCols + col] = typeColors.computeIfAbsent(Background.getBackgroundCell(world, col, row), Overview::typeColor);
+            }
+        }
+        for (Entity entity : world.entities) {
+            overview.counts[0][entity.position.y * world.numCols + entity.position.x]++;
+        }
+        for (int level = 1; level < overview.colors.length; level++) {
+            for (int row = 0; row < overview.levelRows[level]; row++) {
+                for (int col = 0; col < overview.levelCols[level]; col++) {
+                    summarize(overview, level, row, col);
+                }
+            }
+        }
+        overview.changed = true;
+        world.overview = overview;
+        return overview;
+    }
+
+    public static void backgroundChanged(Overview overview, Point pos, Background background) {
+        overview.colors[0][pos.y * overview.numCols + pos.x] = typeColor(background);
+        for (int level = 1; level < overview.colors.length; level++) {
+            summarize(overview, level, pos.y >> level, pos.x >> level);
+        }
+        overview.changed = true;
+    }
+
+    /*
+       Counts an entity out of one cell and into another. Either may be
+       null, for entities that are added or removed.
+    */
+    public static void entityMoved(Overview overview, Point from, Point to) {
+        if (from != null) {
+            count(overview, from, -1);
+        }
+        if (to != null) {
+            count(overview, to, 1);
+        }
+        overview.changed = true;
+    }
+
+    private static void count(Overview overview, Point pos, int delta) {
+        for (int level = 0; level < overview.counts.length; level++) {
+            overview.counts[level][(pos.y >> level) * overview.levelCols[level] + (pos.x >> level)] += delta;
+        }
+    }
+
+    /*
+       Recomputes one block from the up to four blocks below it. Blocks
+       along the right and bottom edge can cover fewer cells than the
+       others, so each block's color counts by how many cells it covers.
+    */
+    private static void summarize(Overview overview, int level, int row, int col) {
+        int[] colors = overview.colors[level - 1];
+        int[] counts = overview.counts[level - 1];
+        int below = overview.levelCols[level - 1];
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        long cells = 0;
+        int count = 0;
+        for (int r = row * 2; r < Math.min(row * 2 + 2, overview.levelRows[level - 1]); r++) {
+            for (int c = col * 2; c < Math.min(col * 2 + 2, below); c++) {
+                int color = colors[r * below + c];
+                long blockCells = blockCells(overview, level - 1, r, c);
+                red += ((color >> 16) & 0xff) * blockCells;
+                green += ((color >> 8) & 0xff) * blockCells;
+                blue += (color & 0xff) * blockCells;
+                count += counts[r * below + c];
+                cells += blockCells;
+            }
+        }
+        int index = row * overview.levelCols[level] + col;
+        overview.colors[level][index] = (int) (red / cells) << 16 | (int) (green / cells) << 8 | (int) (blue / cells);
+        overview.counts[level][index] = count;
+    }
+
+    // how many cells of the world the block covers
+    public static long blockCells(Overview overview, int level, int row, int col) {
+        long rows = Math.min((row + 1) << level, overview.numRows) - (row << level);
+        long cols = Math.min((col + 1) << level, overview.numCols) - (col << level);
+        return rows * cols;
+    }
+
+    // the average of every frame of the tile type, so animated tiles don't show whichever frame was current
+    public static int typeColor(Background background) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (PImage image : background.images) {
+            int color = averageColor(image);
+            red += (color >> 16) & 0xff;
+            green += (color >> 8) & 0xff;
+            blue += color & 0xff;
+        }
+        int frames = Math.max(1, background.images.size());
+        return (int) (red / frames) << 16 | (int) (green / frames) << 8 | (int) (blue / frames);
+    }
+
+    public static int averageColor(PImage image) {
+        if (image.pixels == null) {
+            image.loadPixels();
+        }
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int pixel : image.pixels) {
+            red += (pixel >> 16) & 0xff;
+            green += (pixel >> 8) & 0xff;
+            blue += pixel & 0xff;
+        }
+        int pixels = Math.max(1, image.pixels.length);
+        return (int) (red / pixels) << 16 | (int) (green / pixels) << 8 | (int) (blue / pixels);
+    }
+
+    // the most detailed level at which the whole world fits into width by height pixels
+    public static int levelFor(Overview overview, int width, int height) {
+        int level = 0;
+        while (level < overview.colors.length - 1 && (overview.levelCols[level] > width || overview.levelRows[level] > height)) {
+            level++;
+        }
+        return level;
+    }
+
+    /*
+       Writes one pixel per block of the level into pixels, the background
+       color with the entity color blended over it by the share of the
+       block's cells that hold an entity.
+    */
+    public static void compose(Overview overview, int level, int[] pixels) {
+        int[] colors = overview.colors[level];
+        int[] counts = overview.counts[level];
+        int cols = overview.levelCols[level];
+        for (int i = 0; i < colors.length; i++) {
+            int weight = (int) Math.min(0xff, counts[i] * 0xffL / blockCells(overview, level, i / cols, i % cols));
+            pixels[i] = 0xff000000 | mix(colors[i], ENTITY_COLOR, weight);
+        }
+    }
+
+    public static int mix(int from, int to, int weight) {
+        int inverse = 0xff - weight;
+        int red = (((from >> 16) & 0xff) * inverse + ((to >> 16) & 0xff) * weight) / 0xff;
+        int green = (((from >> 8) & 0xff) * inverse + ((to >> 8) & 0xff) * weight) / 0xff;
+        int blue = ((from & 0xff) * inverse + (to & 0xff) * weight) / 0xff;
+        return red << 16 | green << 8 | blue;
+    }
+
+    /*
+       Draws the whole world scaled to fit the view, with the outline of
+       the viewport on top.
+    */
+    public static void draw(Overview overview, WorldView view) {
+        int width = view.viewport.numCols * view.tileWidth;
+        int height = view.viewport.numRows * view.tileHeight;
+        int level = levelFor(overview, width, height);
+        if (overview.changed || level != overview.imageLevel) {
+            if (level != overview.imageLevel) {
+                overview.image = new PImage(overview.levelCols[level], overview.levelRows[level], PApplet.RGB);
+                overview.imageLevel = level;
+            }
+            overview.image.loadPixels();
+            compose(overview, level, overview.image.pixels);
+            overview.image.updatePixels();
+            overview.changed = false;
+        }
+
+        // screen pixels per world cell
+        float scale = Math.min((float) width / overview.numCols, (float) height / overview.numRows);
+        PApplet screen = view.screen;
+        screen.background(0);
+        screen.image(overview.image, 0, 0, overview.numCols * scale, overview.numRows * scale);
+        screen.pushStyle();
+        screen.noFill();
+        screen.stroke(VIEWPORT_COLOR);
+        screen.rect(view.viewport.col * scale, view.viewport.row * scale, view.viewport.numCols * scale, view.viewport.numRows * scale);
+        screen.popStyle();
+    }
+}
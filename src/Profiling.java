@@ -0,0 +1,112 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the parts of the simulation that take
+ * the time: scheduler batches, entity activities, nearest-entity searches,
+ * loading the world and drawing the viewport. They cost next to nothing
+ * while no recording is running, so a session can be recorded with
+ * -XX:StartFlightRecording and looked at in JMC afterwards, under the
+ * "Virtual World" category.
+ *
+ * Every event is timed from begin() to commit(). Activities run far too
+ * often to record each one, so only one in ACTIVITY_SAMPLE_INTERVAL is.
+ */
+public final class Profiling {
+    public static final int ACTIVITY_SAMPLE_INTERVAL = 64;
+
+    // counts activities for sampling, only ever touched by one thread at a time
+    private static int activities;
+
+    private Profiling() {
+    }
+
+    @Name("virtualworld.SchedulerBatch")
+    @Label("Scheduler Batch")
+    @Category({"Virtual World", "Scheduler"})
+    @Description("All events due at one point in simulated time")
+    public static final class SchedulerBatch extends Event {
+        @Label("Simulated Time")
+        public double time;
+        @Label("Events")
+        public int events;
+        @Label("Queue Depth")
+        @Description("Events left in the queue after the batch")
+        public int queueDepth;
+    }
+
+    @Name("virtualworld.Activity")
+    @Label("Activity")
+    @Category({"Virtual World", "Scheduler"})
+    @Description("One sampled entity activity")
+    public static final class Activity extends Event {
+        @Label("Entity Kind")
+        public String entityKind;
+        @Label("Entity")
+        public String entityId;
+        @Label("Queue Depth")
+        public int queueDepth;
+    }
+
+    @Name("virtualworld.NearestSearch")
+    @Label("Nearest Search")
+    @Category({"Virtual World", "World"})
+    @Description("A search for the nearest entity of some kinds that the cache couldn't answer")
+    public static final class NearestSearch extends Event {
+        @Label("Kinds")
+        public String kinds;
+        @Label("Candidates")
+        public int candidates;
+        @Label("Found")
+        public boolean found;
+    }
+
+    @Name("virtualworld.LoadWorld")
+    @Label("Load World")
+    @Category({"Virtual World", "World"})
+    public static final class LoadWorld extends Event {
+        @Label("Rows")
+        public int rows;
+        @Label("Columns")
+        public int cols;
+        @Label("Entities")
+        public int entities;
+    }
+
+    @Name("virtualworld.DrawViewport")
+    @Label("Draw Viewport")
+    @Category({"Virtual World", "Rendering"})
+    public static final class DrawViewport extends Event {
+        @Label("Column")
+        public int col;
+        @Label("Row")
+        public int row;
+    }
+
+    /*
+       Returns an activity event to begin if this activity is sampled and
+       a recording wants it, otherwise null.
+    */
+    public static Activity sampleActivity() {
+        if (++activities < ACTIVITY_SAMPLE_INTERVAL) {
+            return null;
+        }
+        activities = 0;
+        Activity event = new Activity();
+        return event.isEnabled() ? event : null;
+    }
+
+    public static String kindNames(Iterable<EntityKind> kinds) {
+        StringBuilder names = new StringBuilder();
+        for (EntityKind kind : kinds) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(kind);
+        }
+        return names.toString();
+    }
+}
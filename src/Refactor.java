@@ -17,9 +17,35 @@ abstract class Refactor {
     int health;
     int healthLimit;
 
+    // slot in WorldModel.kindEntities while in a world
+    int registryIndex;
 
-    Refactor(EntityKind kind, Point position, List<PImage> images, int resourceCount, int resourceLimit, double actionPeriod, double animationPeriod, int health, int healthLimit){
+    // the world the entity is in, null when it isn't in one
+    WorldModel world;
+    // what the entity currently adds to world.stateHash
+    long stateHash;
+
+    // time of the next frame when animated lazily, NaN when driven by events
+    double nextAnimationTime;
+
+    // when a plant's activity last ran, and whether its next one is on the coarse schedule
+    double activityTime;
+    boolean coarseActivity;
+
+    // target this dude holds in WorldModel.reservations
+    Entity reserved;
+
+    // last result of WorldModel.findNearestCached as a registry slot, see there
+    EntityKind targetKind;
+    int targetSlot;
+    Point targetFrom;
+    double targetMargin;
+    long targetVersion;
+
+
+    Refactor(EntityKind kind, String id, Point position, List<PImage> images, int resourceCount, int resourceLimit, double actionPeriod, double animationPeriod, int health, int healthLimit){
         this.kind = kind;
+        this.id = id;
         this.position = position;
         this.images = images;
         this.imageIndex = 0;
@@ -29,6 +55,8 @@ abstract class Refactor {
         this.animationPeriod = animationPeriod;
         this.health = health;
         this.healthLimit = healthLimit;
+        this.nextAnimationTime = Double.NaN;
+        this.targetVersion = -1;
     }
     abstract public String log();
 }
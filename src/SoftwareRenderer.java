@@ -0,0 +1,119 @@
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Draws what a WorldView shows into an int[] of ARGB pixels, straight
+ * from the pixel arrays of the images in the ImageStore, without a
+ * Processing window. Every row of tiles is composed on its own thread:
+ * the background tile, then the cell's occupant on top of it.
+ *
+ * Images are clipped to their tile so that rows never write into each
+ * other. The tiles in the image list are all exactly one tile in size,
+ * so nothing is lost.
+ *
+ * The renderer owns two frame buffers and switches between them every
+ * frame, so one frame can be written out while the next one is drawn.
+ */
+public final class SoftwareRenderer {
+    // what is left where the viewport reaches past the edge of the world
+    public static final int EMPTY_COLOR = 0xff000000;
+
+    public int width;
+    public int height;
+    public int[][] buffers;
+    public int current;
+
+    public SoftwareRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.buffers = new int[][]{new int[width * height], new int[width * height]};
+    }
+
+    public static SoftwareRenderer create(WorldView view) {
+        return new SoftwareRenderer(view.viewport.numCols * view.tileWidth, view.viewport.numRows * view.tileHeight);
+    }
+
+    /*
+       Draws the view into the next frame buffer and returns it. Like
+       drawViewport this expects background frames to be advanced and
+       visible entities' animations to be synced beforehand.
+    */
+    public static int[] render(SoftwareRenderer renderer, WorldView view) {
+        renderer.current ^= 1;
+        int[] frame = renderer.buffers[renderer.current];
+        IntStream.range(0, view.viewport.numRows).parallel().forEach(row -> drawRow(renderer, view, frame, row));
+        return frame;
+    }
+
+    public static void drawRow(SoftwareRenderer renderer, WorldView view, int[] frame, int row) {
+        WorldModel world = view.world;
+        Viewport viewport = view.viewport;
+        int worldRow = viewport.row + row;
+        for (int col = 0; col < viewport.numCols; col++) {
+            int worldCol = viewport.col + col;
+            int x = col * view.tileWidth;
+            int y = row * view.tileHeight;
+            if (worldRow >= world.numRows || worldCol >= world.numCols) {
+                fillTile(renderer, frame, x, y, view.tileWidth, view.tileHeight, EMPTY_COLOR);
+                continue;
+            }
+
+            blitTile(renderer, frame, Background.getBackgroundCell(world, worldCol, worldRow).image, x, y, view.tileWidth, view.tileHeight);
+            // see WorldModel.cellIndex
+            Entity occupant = WorldModel.occupantAt(world, (worldRow + 1) * world.stride + worldCol + 1);
+            if (occupant != null) {
+                blitTile(renderer, frame, ImageStore.getCurrentImage(occupant), x, y, view.tileWidth, view.tileHeight);
+            }
+        }
+    }
+
+    /*
+       Draws the image with its top left corner at x, y, clipped to a tile
+       of the given size. Images without an alpha channel are copied,
+       others are blended over what is already there.
+    */
+    public static void blitTile(SoftwareRenderer renderer, int[] frame, PImage image, int x, int y, int tileWidth, int tileHeight) {
+        if (image.pixels == null) {
+            image.loadPixels();
+        }
+        int[] source = image.pixels;
+        int width = Math.min(Math.min(image.width, tileWidth), renderer.width - x);
+        int height = Math.min(Math.min(image.height, tileHeight), renderer.height - y);
+        boolean opaque = image.format == PApplet.RGB;
+
+        for (int row = 0; row < height; row++) {
+            int from = row * image.width;
+            int to = (y + row) * renderer.width + x;
+            for (int col = 0; col < width; col++) {
+                int pixel = source[from + col];
+                int alpha = pixel >>> 24;
+                if (opaque || alpha == 0xff) {
+                    frame[to + col] = pixel | 0xff000000;
+                } else if (alpha != 0) {
+                    frame[to + col] = blend(pixel, frame[to + col], alpha);
+                }
+            }
+        }
+    }
+
+    public static void fillTile(SoftwareRenderer renderer, int[] frame, int x, int y, int tileWidth, int tileHeight, int color) {
+        int width = Math.min(tileWidth, renderer.width - x);
+        int height = Math.min(tileHeight, renderer.height - y);
+        for (int row = 0; row < height; row++) {
+            int start = (y + row) * renderer.width + x;
+            Arrays.fill(frame, start, start + width, color);
+        }
+    }
+
+    // source over an opaque destination, which stays opaque
+    public static int blend(int source, int destination, int alpha) {
+        int inverse = 0xff - alpha;
+        int red = (((source >> 16) & 0xff) * alpha + ((destination >> 16) & 0xff) * inverse) / 0xff;
+        int green = (((source >> 8) & 0xff) * alpha + ((destination >> 8) & 0xff) * inverse) / 0xff;
+        int blue = ((source & 0xff) * alpha + (destination & 0xff) * inverse) / 0xff;
+        return 0xff000000 | red << 16 | green << 8 | blue;
+    }
+}
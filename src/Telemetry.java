@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server on localhost for dashboards to follow a running
+ * world:
+ *
+ *   /metrics                 scheduler numbers and entities per kind, in
+ *                            the Prometheus text format
+ *   /entities?since=CURSOR   entity positions that changed since the
+ *                            cursor of an earlier answer, as JSON
+ *
+ * The simulation thread never waits for a client. The world tells the
+ * telemetry it is attached to which entities came, moved, changed or
+ * went, and those collect until a client asks for something. The next
+ * publish then puts them into a ring of the last RING_SIZE batches, so
+ * several moves of one entity go out as one, and refreshes the metrics;
+ * publishes nobody asked for cost nothing. A request waits for that
+ * publish, then reads the ring without a lock. A client that fell so far
+ * behind that its batches have been overwritten, or that has no cursor
+ * yet, gets the full list of positions instead, which the simulation
+ * thread builds at the same publish.
+ */
+public final class Telemetry {
+    public static final int RING_SIZE = 256;
+    public static final int HTTP_THREADS = 2;
+    public static final long SNAPSHOT_TIMEOUT_MILLIS = 2000;
+
+    /*
+       What changed in one publish. Entities that left the world have
+       removed set and no position.
+    */
+    public static final class Batch {
+        public final long sequence;
+        public final String[] ids;
+        public final int[] xs;
+        public final int[] ys;
+        public final boolean[] removed;
+
+        public Batch(long sequence, String[] ids, int[] xs, int[] ys, boolean[] removed) {
+            this.sequence = sequence;
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+            this.removed = removed;
+        }
+    }
+
+    // every position as of one publish, for clients that can't catch up from the ring
+    public static final class Snapshot {
+        public final long sequence;
+        public final String json;
+
+        public Snapshot(long sequence, String json) {
+            this.sequence = sequence;
+            this.json = json;
+        }
+    }
+
+    public HttpServer server;
+    public ExecutorService handlers;
+
+    // what changed since the last batch, only touched by the simulation thread
+    public Set<Entity> changed;
+    public Set<String> removed;
+
+    // written by the simulation thread, read by any number of clients
+    public final Batch[] ring;
+    public volatile long sequence;
+    // cursors before this one are from a world that is no longer attached
+    public volatile long firstCursor;
+    public volatile String metrics;
+    // completed by the next publish, for requests waiting on it
+    public final AtomicReference<CompletableFuture<Long>> publishWanted;
+    public final AtomicReference<CompletableFuture<Snapshot>> snapshotWanted;
+
+    public final AtomicLong snapshotsServed;
+    public final AtomicLong deltasServed;
+
+    public Telemetry() {
+        this.changed = new HashSet<>();
+        this.removed = new HashSet<>();
+        this.ring = new Batch[RING_SIZE];
+        this.firstCursor = 1;
+        this.metrics = "";
+        this.publishWanted = new AtomicReference<>();
+        this.snapshotWanted = new AtomicReference<>();
+        this.snapshotsServed = new AtomicLong();
+        this.deltasServed = new AtomicLong();
+    }
+
+    /*
+       Starts serving on the loopback address. Port 0 picks a free port,
+       see port.
+    */
+    public static Telemetry start(int port) throws IOException {
+        Telemetry telemetry = new Telemetry();
+        telemetry.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        telemetry.handlers = Executors.newFixedThreadPool(HTTP_THREADS, task -> {
+            Thread thread = new Thread(task, "telemetry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        telemetry.server.setExecutor(telemetry.handlers);
+        telemetry.server.createContext("/metrics", exchange -> {
+            awaitPublish(telemetry);
+            serve(exchange, "text/plain; version=0.0.4", telemetry.metrics);
+        });
+        telemetry.server.createContext("/entities", exchange -> serveEntities(telemetry, exchange));
+        telemetry.server.start();
+        return telemetry;
+    }
+
+    public static int port(Telemetry telemetry) {
+        return telemetry.server.getAddress().getPort();
+    }
+
+    public static void stop(Telemetry telemetry) {
+        telemetry.server.stop(0);
+        telemetry.handlers.shutdownNow();
+        CompletableFuture<Long> waiting = telemetry.publishWanted.getAndSet(null);
+        if (waiting != null) {
+            waiting.cancel(false);
+        }
+        CompletableFuture<Snapshot> wanted = telemetry.snapshotWanted.getAndSet(null);
+        if (wanted != null) {
+            wanted.cancel(false);
+        }
+    }
+
+    /*
+       Makes the world report its changes to the telemetry, for a world
+       that was just loaded. Cursors handed out for an earlier world no
+       longer mean anything, so their clients start over from a snapshot.
+    */
+    public static void attach(Telemetry telemetry, WorldModel world) {
+        world.telemetry = telemetry;
+        telemetry.changed.clear();
+        telemetry.removed.clear();
+        telemetry.firstCursor = telemetry.sequence + 1;
+    }
+
+    // an entity came, moved or changed; called by the world it is in
+    public static void entityChanged(Telemetry telemetry, Entity entity) {
+        telemetry.removed.remove(entity.id);
+        telemetry.changed.add(entity);
+    }
+
+    // the entity left the world, or an entity transformed in place gave up the id
+    public static void entityRemoved(Telemetry telemetry, Entity entity, String id) {
+        telemetry.changed.remove(entity);
+        telemetry.removed.add(id);
+    }
+
+    /*
+       Called by the simulation thread after an update. If a client asked
+       for anything since the last call, puts what changed since the last
+       batch into the ring, refreshes the metrics and builds a snapshot if
+       a client is waiting for one. Otherwise the changes keep collecting.
+    */
+    public static void publish(Telemetry telemetry, WorldModel world, EventScheduler scheduler) {
+        CompletableFuture<Long> waiting = telemetry.publishWanted.getAndSet(null);
+        CompletableFuture<Snapshot> wanted = telemetry.snapshotWanted.getAndSet(null);
+        if (waiting == null && wanted == null) {
+            return;
+        }
+
+        BatchBuilder changes = new BatchBuilder();
+        for (Entity entity : telemetry.changed) {
+            if (!entity.id.isEmpty()) {
+                changes.add(entity.id, entity.position.x, entity.position.y, false);
+            }
+        }
+        for (String gone : telemetry.removed) {
+            if (!gone.isEmpty()) {
+                changes.add(gone, 0, 0, true);
+            }
+        }
+        telemetry.changed.clear();
+        telemetry.removed.clear();
+
+        long sequence = telemetry.sequence + 1;
+        telemetry.ring[(int) (sequence % RING_SIZE)] = changes.build(sequence);
+        // clients only look at slots up to sequence, so the slot is written first
+        telemetry.sequence = sequence;
+        telemetry.metrics = metrics(telemetry, world, scheduler);
+
+        if (wanted != null) {
+            wanted.complete(snapshot(world, sequence));
+        }
+        if (waiting != null) {
+            waiting.complete(sequence);
+        }
+    }
+
+    public static String metrics(Telemetry telemetry, WorldModel world, EventScheduler scheduler) {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "virtualworld_time_seconds", "simulated time", scheduler.currentTime);
+        counter(out, "virtualworld_events_total", "events run by the scheduler", scheduler.eventsRun);
+        gauge(out, "virtualworld_queue_depth", "events waiting in the queue", scheduler.eventQueue.size());
+        gauge(out, "virtualworld_lag_seconds", "simulated time the scheduler is behind", scheduler.lag);
+        counter(out, "virtualworld_searches_total", "full nearest entity searches", world.searches);
+        out.append("# HELP virtualworld_entities entities in the world\n# TYPE virtualworld_entities gauge\n");
+        for (EntityKind kind : EntityKind.values()) {
+            out.append("virtualworld_entities{kind=\"").append(kind).append("\"} ").append(WorldModel.population(world, kind)).append('\n');
+        }
+        counter(out, "virtualworld_telemetry_snapshots_total", "full position lists sent to clients", telemetry.snapshotsServed.get());
+        counter(out, "virtualworld_telemetry_deltas_total", "position changes sent to clients", telemetry.deltasServed.get());
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static Snapshot snapshot(WorldModel world, long sequence) {
+        StringBuilder json = new StringBuilder("{\"cursor\":").append(sequence).append(",\"snapshot\":true,\"moved\":[");
+        boolean first = true;
+        for (Entity entity : world.entities) {
+            if (!entity.id.isEmpty()) {
+                first = appendPosition(json, first, entity.id, entity.position.x, entity.position.y);
+            }
+        }
+        return new Snapshot(sequence, json.append("],\"removed\":[]}").toString());
+    }
+
+    /*
+       Answers with every change after the cursor up to the next publish,
+       merged so that each entity appears once, or with a snapshot when
+       the ring no longer goes back that far.
+    */
+    public static void serveEntities(Telemetry telemetry, HttpExchange exchange) throws IOException {
+        long since = cursor(exchange.getRequestURI().getRawQuery());
+        String json = null;
+        if (since >= telemetry.firstCursor) {
+            awaitPublish(telemetry);
+            long sequence = telemetry.sequence;
+            json = since <= sequence && since >= sequence - RING_SIZE ? deltas(telemetry, since, sequence) : null;
+        }
+        if (json == null) {
+            Snapshot snapshot = awaitSnapshot(telemetry);
+            if (snapshot == null) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            telemetry.snapshotsServed.incrementAndGet();
+            json = snapshot.json;
+        }
+        serve(exchange, "application/json", json);
+    }
+
+    // null if a batch was overwritten while it was being read
+    private static String deltas(Telemetry telemetry, long since, long sequence) {
+        Map<String, int[]> changes = new LinkedHashMap<>();
+        for (long s = since + 1; s <= sequence; s++) {
+            Batch batch = telemetry.ring[(int) (s % RING_SIZE)];
+            if (batch == null || batch.sequence != s) {
+                return null;
+            }
+            for (int i = 0; i < batch.ids.length; i++) {
+                changes.put(batch.ids[i], batch.removed[i] ? null : new int[]{batch.xs[i], batch.ys[i]});
+            }
+        }
+
+        StringBuilder json = new StringBuilder("{\"cursor\":").append(sequence).append(",\"snapshot\":false,\"moved\":[");
+        boolean first = true;
+        for (Map.Entry<String, int[]> change : changes.entrySet()) {
+            if (change.getValue() != null) {
+                first = appendPosition(json, first, change.getKey(), change.getValue()[0], change.getValue()[1]);
+            }
+        }
+        json.append("],\"removed\":[");
+        first = true;
+        for (Map.Entry<String, int[]> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                json.append(first ? "" : ",");
+                appendString(json, change.getKey());
+                first = false;
+            }
+        }
+        telemetry.deltasServed.addAndGet(changes.size());
+        return json.append("]}").toString();
+    }
+
+    /*
+       Waits until the simulation thread published what changed up to
+       now. If it isn't publishing, the answer is as of its last publish.
+    */
+    private static void awaitPublish(Telemetry telemetry) {
+        CompletableFuture<Long> waiting = telemetry.publishWanted.updateAndGet(pending -> pending != null ? pending : new CompletableFuture<>());
+        try {
+            waiting.get(SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            // the simulation isn't publishing
+        }
+    }
+
+    private static Snapshot awaitSnapshot(Telemetry telemetry) {
+        CompletableFuture<Snapshot> wanted = telemetry.snapshotWanted.updateAndGet(pending -> pending != null ? pending : new CompletableFuture<>());
+        try {
+            return wanted.get(SNAPSHOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException | CancellationException e) {
+            // the simulation isn't publishing
+            return null;
+        }
+    }
+
+    // the since parameter of the query, or -1 for none
+    public static long cursor(String query) {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("since=")) {
+                    try {
+                        return Long.parseLong(parameter.substring("since=".length()));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean appendPosition(StringBuilder json, boolean first, String id, int x, int y) {
+        json.append(first ? "[" : ",[");
+        appendString(json, id);
+        json.append(',').append(x).append(',').append(y).append(']');
+        return false;
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static void serve(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // collects one publish's changes into the parallel arrays of a Batch
+    private static final class BatchBuilder {
+        private String[] ids = new String[16];
+        private int[] xs = new int[16];
+        private int[] ys = new int[16];
+        private boolean[] removed = new boolean[16];
+        private int count;
+
+        void add(String id, int x, int y, boolean gone) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+                removed = Arrays.copyOf(removed, count * 2);
+            }
+            ids[count] = id;
+            xs[count] = x;
+            ys[count] = y;
+            removed[count] = gone;
+            count++;
+        }
+
+        Batch build(long sequence) {
+            return new Batch(sequence, Arrays.copyOf(ids, count), Arrays.copyOf(xs, count),
+                    Arrays.copyOf(ys, count), Arrays.copyOf(removed, count));
+        }
+    }
+}
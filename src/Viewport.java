@@ -19,7 +19,15 @@ public final class Viewport {
     }
 
     public static void drawViewport(WorldView view) {
+        Profiling.DrawViewport event = new Profiling.DrawViewport();
+        event.begin();
         Background.drawBackground(view);
         Entity.drawEntities(view);
+        event.end();
+        if (event.shouldCommit()) {
+            event.col = view.viewport.col;
+            event.row = view.viewport.row;
+            event.commit();
+        }
     }
 }
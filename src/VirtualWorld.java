@@ -1,5 +1,7 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 import processing.core.*;
@@ -18,6 +20,7 @@ public final class VirtualWorld extends PApplet {
     public static final String IMAGE_LIST_FILE_NAME = "imagelist";
     public static final String DEFAULT_IMAGE_NAME = "background_default";
     public static final int DEFAULT_IMAGE_COLOR = 0x808080;
+    public static final String IMAGE_CACHE_DIR = ".imagecache";
 
     public static final String FAST_FLAG = "-fast";
     public static final String FASTER_FLAG = "-faster";
@@ -26,14 +29,53 @@ public final class VirtualWorld extends PApplet {
     public static final double FASTER_SCALE = 0.25;
     public static final double FASTEST_SCALE = 0.10;
 
+    public static final String FAST_FORWARD_FLAG = "-fastforward";
+    public static final String PARALLEL_FLAG = "-parallel";
+    public static final String FLOW_FIELD_FLAG = "-flowfield";
+    // dudes moving by a flow field head for whichever tree is nearest, so -reserve is ignored with -flowfield
+    public static final String RESERVE_FLAG = "-reserve";
+    public static final String SPARSE_FLAG = "-sparse";
+    public static final String LOD_FLAG = "-lod";
+    public static final int LOD_MARGIN = 2;
+    public static final int LOD_ACTIVITY_FACTOR = 8;
+    public static final String WATCH_FLAG = "-watch";
+    public static final String PRELOAD_FLAG = "-preload";
+    public static final String LAZY_ANIMATION_FLAG = "-lazyanimation";
+    public static final String MAX_EVENTS_FLAG = "-maxevents=";
+    public static final String FRAME_BUDGET_FLAG = "-budget=";
+    // serves metrics and entity positions on localhost at the given port, 0 for any free one
+    public static final String TELEMETRY_FLAG = "-telemetry=";
+    public static final long DEFAULT_FRAME_BUDGET_MILLIS = 12;
+    public static final double MAX_LAG = 0.5;
+    // switches between the viewport and the zoomed out overview of the whole world
+    public static final char OVERVIEW_KEY = 'z';
+
     public String loadFile = "world.sav";
     public long startTimeMillis = 0;
     public double timeScale = 1.0;
+    public boolean lazyAnimation = false;
+    public boolean preloadImages = false;
+    public boolean watchFiles = false;
+    public boolean levelOfDetail = false;
+    public boolean reserveTargets = false;
+    public boolean flowFields = false;
+    public boolean parallel = false;
+    public boolean fastForward = false;
+    public boolean sparse = false;
+
+    // catch-up policy for draw(); 0 means no limit
+    public int maxEventsPerFrame = 0;
+    public long frameBudgetMillis = DEFAULT_FRAME_BUDGET_MILLIS;
+    public boolean behind = false;
+    public boolean showOverview = false;
+    public int telemetryPort = -1;
 
     public ImageStore imageStore;
     public WorldModel world;
     public WorldView view;
     public EventScheduler scheduler;
+    public WorldWatcher watcher;
+    public Telemetry telemetry;
 
     public void settings() {
         size(VIEW_WIDTH, VIEW_HEIGHT);
@@ -48,22 +90,136 @@ public final class VirtualWorld extends PApplet {
         loadWorld(loadFile, this.imageStore);
 
         this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH, TILE_HEIGHT);
-        this.scheduler = new EventScheduler();
+        this.scheduler = createScheduler();
         this.startTimeMillis = System.currentTimeMillis();
         this.scheduleActions(world, scheduler, imageStore);
+
+        if (watchFiles && new File(loadFile).isFile()) {
+            try {
+                this.watcher = WorldWatcher.create(loadFile, IMAGE_LIST_FILE_NAME, world, imageStore);
+            } catch (IOException e) {
+                System.err.println("Not watching for changes: " + e.getMessage());
+            }
+        }
+        if (telemetryPort >= 0) {
+            try {
+                this.telemetry = Telemetry.start(telemetryPort);
+                Telemetry.attach(telemetry, world);
+                System.out.println("Telemetry on http://localhost:" + Telemetry.port(telemetry) + "/metrics");
+            } catch (IOException e) {
+                System.err.println("No telemetry: " + e.getMessage());
+            }
+        }
+    }
+
+    public void dispose() {
+        if (telemetry != null) {
+            Telemetry.stop(telemetry);
+        }
+        super.dispose();
+    }
+
+    public EventScheduler createScheduler() {
+        EventScheduler scheduler = new EventScheduler();
+        scheduler.lazyAnimation = lazyAnimation;
+        scheduler.parallel = parallel;
+        if (levelOfDetail) {
+            scheduler.region = view.viewport;
+            scheduler.regionMargin = LOD_MARGIN;
+            scheduler.regionActivityFactor = LOD_ACTIVITY_FACTOR;
+        }
+        return scheduler;
     }
 
     public void draw() {
+        if (watcher != null) {
+            this.applyFileChanges();
+        }
         double appTime = (System.currentTimeMillis() - startTimeMillis) * 0.001;
         double frameTime = (appTime - scheduler.currentTime)/timeScale;
-        this.update(frameTime);
+        EventScheduler.updateOnTime(scheduler, frameTime, maxEventsPerFrame, frameBudgetMillis * 1_000_000);
+        this.catchUp();
+        if (telemetry != null) {
+            Telemetry.publish(telemetry, world, scheduler);
+        }
+        if (showOverview) {
+            Overview.draw(world.overview != null ? world.overview : Overview.create(world), view);
+            return;
+        }
+        this.syncVisibleAnimations();
+        Background.advanceFrames(world, scheduler.currentTime);
         Viewport.drawViewport(view);
     }
 
+    /*
+       When the scheduler could not keep up, let at most MAX_LAG of simulated
+       time carry over to the next frame and slow the simulation down by
+       dropping the rest, so a stall never snowballs into ever longer frames.
+    */
+    public void catchUp() {
+        if (scheduler.lag > MAX_LAG) {
+            if (!behind) {
+                System.out.printf("Simulation behind by %.2fs, slowing down\n", scheduler.lag);
+            }
+            behind = true;
+            startTimeMillis += (long) ((scheduler.lag - MAX_LAG) * timeScale * 1000);
+        } else if (behind && scheduler.lag == 0) {
+            System.out.println("Simulation caught up");
+            behind = false;
+        }
+    }
+
     public void update(double frameTime){
         EventScheduler.updateOnTime(scheduler, frameTime);
     }
 
+    public void applyFileChanges() {
+        for (Path changed : WorldWatcher.pollChanges(watcher)) {
+            try {
+                if (changed.equals(watcher.imageListFile)) {
+                    WorldWatcher.reloadImages(watcher, world, imageStore, this);
+                    System.out.println("Reloaded " + IMAGE_LIST_FILE_NAME);
+                } else if (WorldWatcher.reloadWorld(watcher, world, scheduler, imageStore)) {
+                    System.out.println("Reloaded " + loadFile);
+                } else {
+                    this.restartWorld();
+                    System.out.println("Reloaded " + loadFile + " from scratch, its size changed");
+                }
+            } catch (IOException | RuntimeException e) {
+                // most likely caught the file half written, the next change will retry
+                System.err.println("Could not reload " + changed + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // throws away the running world and starts over from the world file, keeping the clock
+    public void restartWorld() throws FileNotFoundException {
+        double currentTime = scheduler.currentTime;
+        loadWorld(loadFile, imageStore);
+        this.view.world = world;
+        WorldView.shiftView(view, 0, 0);
+        this.scheduler = createScheduler();
+        this.scheduler.currentTime = currentTime;
+        this.scheduleActions(world, scheduler, imageStore);
+        WorldWatcher.track(watcher, world, imageStore);
+        if (telemetry != null) {
+            Telemetry.attach(telemetry, world);
+        }
+    }
+
+    /*
+       Lazily animated entities only need to be current where they are
+       drawn. Entities can be lazy without -lazyanimation, after leaving
+       the level of detail region or after a fast forward.
+    */
+    public void syncVisibleAnimations() {
+        for (Entity entity : world.entities) {
+            if (Functions.contains(view.viewport, entity.position)) {
+                EventScheduler.syncAnimation(scheduler, entity);
+            }
+        }
+    }
+
     // Just for debugging and for P5
     // Be sure to refactor this method as appropriate
     public void mousePressed() {
@@ -79,8 +235,14 @@ public final class VirtualWorld extends PApplet {
     }
 
     public void scheduleActions(WorldModel world, EventScheduler scheduler, ImageStore imageStore) {
-        for (Entity entity : world.entities) {
-            Action.scheduleActions(entity, scheduler, world, imageStore);
+        for (EntityKind kind : EntityKind.values()) {
+            // houses and stumps have nothing to schedule
+            if (kind != EntityKind.HOUSE && kind != EntityKind.STUMP) {
+                Entity[] registry = world.kindEntities[kind.ordinal()];
+                for (int i = 0; i < world.kindCounts[kind.ordinal()]; i++) {
+                    Action.scheduleActions(registry[i], scheduler, world, imageStore);
+                }
+            }
         }
     }
 
@@ -100,6 +262,11 @@ public final class VirtualWorld extends PApplet {
                 case RIGHT -> dx += 1;
             }
             WorldView.shiftView(view, dx, dy);
+            if (scheduler.region != null) {
+                Action.refreshRegion(world, imageStore, scheduler);
+            }
+        } else if (key == OVERVIEW_KEY) {
+            showOverview = !showOverview;
         }
     }
 
@@ -117,9 +284,13 @@ public final class VirtualWorld extends PApplet {
 
     public void loadImages(String filename) {
         this.imageStore = new ImageStore(createImageColored(TILE_WIDTH, TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
+        this.imageStore.cacheDir = new File(IMAGE_CACHE_DIR);
         try {
             Scanner in = new Scanner(new File(filename));
             Functions.loadImages(in, imageStore,this);
+            if (preloadImages) {
+                ImageStore.loadAllImages(imageStore);
+            }
         } catch (FileNotFoundException e) {
             System.err.println(e.getMessage());
         }
@@ -127,6 +298,7 @@ public final class VirtualWorld extends PApplet {
 
     public void loadWorld(String file, ImageStore imageStore) {
         this.world = new WorldModel();
+        world.sparse = sparse;
         try {
             Scanner in = new Scanner(new File(file));
             Functions.load(world, in, imageStore, createDefaultBackground(imageStore));
@@ -134,6 +306,11 @@ public final class VirtualWorld extends PApplet {
             Scanner in = new Scanner(file);
             Functions.load(world, in, imageStore, createDefaultBackground(imageStore));
         }
+        world.reserveTargets = reserveTargets;
+        world.useFlowFields = flowFields;
+        if (parallel) {
+            WorldModel.makeConcurrent(world);
+        }
     }
 
     public void parseCommandLine(String[] args) {
@@ -142,9 +319,32 @@ public final class VirtualWorld extends PApplet {
                 case FAST_FLAG -> timeScale = Math.min(FAST_SCALE, timeScale);
                 case FASTER_FLAG -> timeScale = Math.min(FASTER_SCALE, timeScale);
                 case FASTEST_FLAG -> timeScale = Math.min(FASTEST_SCALE, timeScale);
-                default -> loadFile = arg;
+                case LAZY_ANIMATION_FLAG -> lazyAnimation = true;
+                case PRELOAD_FLAG -> preloadImages = true;
+                case WATCH_FLAG -> watchFiles = true;
+                case LOD_FLAG -> levelOfDetail = true;
+                case RESERVE_FLAG -> reserveTargets = true;
+                case FLOW_FIELD_FLAG -> flowFields = true;
+                case PARALLEL_FLAG -> parallel = true;
+                case FAST_FORWARD_FLAG -> fastForward = true;
+                case SPARSE_FLAG -> sparse = true;
+                default -> {
+                    if (arg.startsWith(MAX_EVENTS_FLAG)) {
+                        maxEventsPerFrame = Integer.parseInt(arg.substring(MAX_EVENTS_FLAG.length()));
+                    } else if (arg.startsWith(FRAME_BUDGET_FLAG)) {
+                        frameBudgetMillis = Long.parseLong(arg.substring(FRAME_BUDGET_FLAG.length()));
+                    } else if (arg.startsWith(TELEMETRY_FLAG)) {
+                        telemetryPort = Integer.parseInt(arg.substring(TELEMETRY_FLAG.length()));
+                    } else {
+                        loadFile = arg;
+                    }
+                }
             }
         }
+        if (reserveTargets && flowFields) {
+            System.out.println("Ignoring " + RESERVE_FLAG + ", dudes following " + FLOW_FIELD_FLAG + " can't keep to a reserved tree");
+            reserveTargets = false;
+        }
     }
 
     public static void main(String[] args) {
@@ -153,13 +353,32 @@ public final class VirtualWorld extends PApplet {
     }
 
     public static List<String> headlessMain(String[] args, double lifetime){
+        return runHeadless(args, lifetime).world.log();
+    }
+
+    // like headlessMain, for comparing runs by hash instead of by log
+    public static long headlessHash(String[] args, double lifetime) {
+        return runHeadless(args, lifetime).world.stateHash;
+    }
+
+    // sets up a world from command line arguments without opening a window
+    public static VirtualWorld headlessWorld(String[] args) {
         VirtualWorld.ARGS = args;
 
         VirtualWorld virtualWorld = new VirtualWorld();
         virtualWorld.setup();
-        virtualWorld.update(lifetime);
+        return virtualWorld;
+    }
 
-        return virtualWorld.world.log();
+    private static VirtualWorld runHeadless(String[] args, double lifetime) {
+        VirtualWorld virtualWorld = headlessWorld(args);
+        if (virtualWorld.fastForward) {
+            EventScheduler.fastForward(virtualWorld.scheduler, lifetime);
+        } else {
+            virtualWorld.update(lifetime);
+        }
+        EventScheduler.syncAnimations(virtualWorld.scheduler, virtualWorld.world.entities);
+        return virtualWorld;
     }
 
     public static Point viewportToWorld(Viewport viewport, int col, int row) {
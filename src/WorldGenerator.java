@@ -0,0 +1,202 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Writes randomly generated worlds in the world.sav format, for load and
+ * scale testing on maps much bigger than the hand-made one. The world is
+ * written a row at a time, so even a 10000x10000 map never has to exist
+ * in memory, and the same seed always produces the same file.
+ *
+ * Usage: WorldGenerator ROWS COLS OUTPUT_FILE [seed=N] [imagelist=FILE]
+ *        [backgrounds=key,key,...] [ENTITY_KEY=density ...]
+ * where each density is the chance of a cell holding that kind of entity.
+ */
+public final class WorldGenerator {
+    public static final int MAX_SIZE = 10000;
+
+    public static final String SEED_OPTION = "seed";
+    public static final String IMAGE_LIST_OPTION = "imagelist";
+    public static final String BACKGROUNDS_OPTION = "backgrounds";
+
+    public static final double OBSTACLE_ANIMATION_MIN = 1.000;
+    public static final double OBSTACLE_ANIMATION_MAX = 1.200;
+    public static final double DUDE_ACTION_MIN = 0.700;
+    public static final double DUDE_ACTION_MAX = 0.900;
+    public static final double DUDE_ANIMATION = 0.180;
+    public static final int DUDE_LIMIT_MIN = 3;
+    public static final int DUDE_LIMIT_MAX = 4;
+    public static final double FAIRY_PERIOD_MIN = 0.100;
+    public static final double FAIRY_PERIOD_MAX = 0.150;
+
+    // keys in the order they are laid out over [0, 1) when picking an entity
+    public static final List<String> ENTITY_KEYS = List.of(Functions.OBSTACLE_KEY, Functions.TREE_KEY, Functions.SAPLING_KEY, Functions.STUMP_KEY, Functions.HOUSE_KEY, Functions.DUDE_KEY, Functions.FAIRY_KEY);
+
+    public static Map<String, Double> defaultDensities() {
+        Map<String, Double> densities = new LinkedHashMap<>();
+        densities.put(Functions.OBSTACLE_KEY, 0.07);
+        densities.put(Functions.TREE_KEY, 0.05);
+        densities.put(Functions.SAPLING_KEY, 0.002);
+        densities.put(Functions.STUMP_KEY, 0.002);
+        densities.put(Functions.HOUSE_KEY, 0.003);
+        densities.put(Functions.DUDE_KEY, 0.004);
+        densities.put(Functions.FAIRY_KEY, 0.004);
+        return densities;
+    }
+
+    /*
+       Background keys are every key in the image list that isn't used for
+       entities or as the default background.
+    */
+    public static List<String> backgroundKeys(Scanner imageList) {
+        Set<String> keys = new LinkedHashSet<>();
+        while (imageList.hasNextLine()) {
+            String[] attrs = imageList.nextLine().split("\\s");
+            if (attrs.length >= 2 && !ENTITY_KEYS.contains(attrs[0]) && !attrs[0].equals(VirtualWorld.DEFAULT_IMAGE_NAME)) {
+                keys.add(attrs[0]);
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    public static void generate(Writer out, int rows, int cols, long seed, Map<String, Double> densities, List<String> backgrounds) throws IOException {
+        if (rows <= 0 || cols <= 0 || rows > MAX_SIZE || cols > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format("world size must be between 1 and %d", MAX_SIZE));
+        }
+        if (backgrounds.isEmpty()) {
+            throw new IllegalArgumentException("at least one background key is required");
+        }
+
+        double[] thresholds = new double[ENTITY_KEYS.size()];
+        double total = 0;
+        for (int i = 0; i < ENTITY_KEYS.size(); i++) {
+            total += densities.getOrDefault(ENTITY_KEYS.get(i), 0.0);
+            thresholds[i] = total;
+        }
+        if (total > 1) {
+            throw new IllegalArgumentException("entity densities add up to more than 1");
+        }
+
+        // separate streams so the entity layout doesn't depend on the backgrounds
+        Random backgroundRand = new Random(seed);
+        Random entityRand = new Random(seed + 1);
+        StringBuilder line = new StringBuilder();
+
+        out.write(String.format("Rows:\n%d\nCols:\n%d\nBackgrounds:\n", rows, cols));
+        for (int row = 0; row < rows; row++) {
+            line.setLength(0);
+            for (int col = 0; col < cols; col++) {
+                if (col > 0) {
+                    line.append(' ');
+                }
+                line.append(backgrounds.get(backgroundRand.nextInt(backgrounds.size())));
+            }
+            out.write(line.append('\n').toString());
+        }
+
+        out.write("Entities:\n");
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                double roll = entityRand.nextDouble();
+                for (int i = 0; i < thresholds.length; i++) {
+                    if (roll < thresholds[i]) {
+                        String key = ENTITY_KEYS.get(i);
+                        line.setLength(0);
+                        line.append(key).append(' ').append(key).append('_').append(count++).append(' ').append(col).append(' ').append(row);
+                        appendProperties(line, key, entityRand);
+                        out.write(line.append('\n').toString());
+                        break;
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    public static void appendProperties(StringBuilder line, String key, Random rand) {
+        switch (key) {
+            case Functions.OBSTACLE_KEY -> appendPeriod(line, range(rand, OBSTACLE_ANIMATION_MIN, OBSTACLE_ANIMATION_MAX));
+            case Functions.TREE_KEY -> {
+                appendPeriod(line, range(rand, Functions.TREE_ANIMATION_MIN, Functions.TREE_ANIMATION_MAX));
+                appendPeriod(line, range(rand, Functions.TREE_ACTION_MIN, Functions.TREE_ACTION_MAX));
+                line.append(' ').append(Functions.TREE_HEALTH_MIN + rand.nextInt(Functions.TREE_HEALTH_MAX - Functions.TREE_HEALTH_MIN + 1));
+            }
+            case Functions.SAPLING_KEY -> line.append(' ').append(0);
+            case Functions.DUDE_KEY -> {
+                appendPeriod(line, range(rand, DUDE_ACTION_MIN, DUDE_ACTION_MAX));
+                appendPeriod(line, DUDE_ANIMATION);
+                line.append(' ').append(DUDE_LIMIT_MIN + rand.nextInt(DUDE_LIMIT_MAX - DUDE_LIMIT_MIN + 1));
+            }
+            case Functions.FAIRY_KEY -> {
+                appendPeriod(line, range(rand, FAIRY_PERIOD_MIN, FAIRY_PERIOD_MAX));
+                appendPeriod(line, range(rand, FAIRY_PERIOD_MIN, FAIRY_PERIOD_MAX));
+            }
+            default -> {
+            }
+        }
+    }
+
+    private static double range(Random rand, double min, double max) {
+        return min + rand.nextDouble() * (max - min);
+    }
+
+    // fixed three decimals like world.sav, without going through the locale
+    private static void appendPeriod(StringBuilder line, double period) {
+        long millis = Math.round(period * 1000);
+        line.append(' ').append(millis / 1000).append('.');
+        long fraction = millis % 1000;
+        if (fraction < 100) line.append('0');
+        if (fraction < 10) line.append('0');
+        line.append(fraction);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: WorldGenerator ROWS COLS OUTPUT_FILE [seed=N] [imagelist=FILE] [backgrounds=key,...] [KEY=density ...]");
+            return;
+        }
+
+        int rows = Integer.parseInt(args[0]);
+        int cols = Integer.parseInt(args[1]);
+        long seed = System.currentTimeMillis();
+        String imageList = VirtualWorld.IMAGE_LIST_FILE_NAME;
+        List<String> backgrounds = null;
+        Map<String, Double> densities = defaultDensities();
+
+        for (int i = 3; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("options must be formatted as name=value: " + args[i]);
+            }
+            switch (option[0]) {
+                case SEED_OPTION -> seed = Long.parseLong(option[1]);
+                case IMAGE_LIST_OPTION -> imageList = option[1];
+                case BACKGROUNDS_OPTION -> backgrounds = List.of(option[1].split(","));
+                default -> {
+                    if (!ENTITY_KEYS.contains(option[0])) {
+                        throw new IllegalArgumentException("Entity key is unknown: " + option[0]);
+                    }
+                    densities.put(option[0], Double.parseDouble(option[1]));
+                }
+            }
+        }
+
+        if (backgrounds == null) {
+            try (Scanner in = new Scanner(new File(imageList))) {
+                backgrounds = backgroundKeys(in);
+            } catch (FileNotFoundException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+
+        try (Writer out = new BufferedWriter(new FileWriter(args[2]), 1 << 16)) {
+            generate(out, rows, cols, seed, densities, backgrounds);
+        }
+    }
+}
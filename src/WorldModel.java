@@ -1,4 +1,9 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents the 2D World in which this simulation is running.
@@ -6,12 +11,80 @@ import java.util.*;
  * location in the world, and the entities that populate the world.
  */
 public final class WorldModel {
+    // sparse worlds keep their cells in chunks of CHUNK_SIZE x CHUNK_SIZE
+    public static final int CHUNK_BITS = 6;
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    // worlds with at least this many cells are stored sparse even when not asked to
+    public static final long SPARSE_MIN_CELLS = 1L << 24;
+
+    // atomic access to occupancy cells, occupied words and the search counter in concurrent mode
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(Entity[].class);
+    private static final VarHandle CHUNKS = MethodHandles.arrayElementVarHandle(Entity[][].class);
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle SEARCHES;
+
+    static {
+        try {
+            SEARCHES = MethodHandles.lookup().findVarHandle(WorldModel.class, "searches", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     public int numRows;
     public int numCols;
     public Background[][] background;
-    public Entity[][] occupancy;
+    // one Background per tile type, shared by every cell of that type
+    public Map<String, Background> backgroundTypes = new LinkedHashMap<>();
+    // row major with a one cell border around the world, see cellIndex
+    public Entity[] occupancy;
+    // one bit per occupancy cell, set when occupied; border cells are always set
+    public long[] occupied;
+    public int stride;
+    // with sparse on, stride is rounded up to 1 << strideBits, so a cell's row and column come from shifts
+    public int strideBits;
     public Set<Entity> entities;
 
+    // with sparse on, occupancy, occupied and background stay null and cells
+    // are kept in chunks instead, allocated the first time something is put
+    // into them; chunks cover the grid with its border, see chunkIndex
+    public boolean sparse;
+    public int chunkCols;
+    public Entity[][] occupancyChunks;
+    public Background[][] backgroundChunks;
+    // per chunk, what every cell shows while its chunk isn't allocated
+    public Background[] backgroundFill;
+    // what cells nobody set a background for show
+    public Background defaultBackground;
+
+    // the entities of each kind, packed into the front kindCounts slots of their array
+    public Entity[][] kindEntities = new Entity[EntityKind.values().length][16];
+    public int[] kindCounts = new int[EntityKind.values().length];
+
+    // with reserveTargets on, harvest targets map to the dude that claimed them
+    public boolean reserveTargets;
+    public Map<Entity, Entity> reservations = new HashMap<>();
+    // with useFlowFields on, dudes and fairies move by the shared field for their target kinds
+    public boolean useFlowFields;
+    public Map<List<EntityKind>, FlowField> flowFields = new HashMap<>();
+    // how many full target searches have run, for measuring
+    public long searches;
+
+    // with concurrent on, cells are claimed and released atomically so movers can be planned from several threads
+    public boolean concurrent;
+
+    // the zoomed out view, kept up to date once it has been shown, otherwise null
+    public Overview overview;
+
+    // told about every entity that comes, moves, changes or goes while attached, otherwise null
+    public Telemetry telemetry;
+
+    // sum of hashEntity over every entity in the world, kept up to date as they change
+    public long stateHash;
+
+    // bumped whenever an entity of that kind is added, removed or moved
+    public long[] kindVersions = new long[EntityKind.values().length];
+
     public WorldModel() {
 
     }
@@ -28,25 +101,389 @@ public final class WorldModel {
         return list;
     }
 
+    /*
+       Writes the same lines as log(), one per line, straight to out
+       without formatting a String per entity.
+    */
+    public static void writeLog(WorldModel world, Writer out) throws IOException {
+        char[] digits = new char[11];
+        for (Entity entity : world.entities) {
+            if (!entity.id.isEmpty()) {
+                out.write(entity.id);
+                out.write(' ');
+                writeInt(out, entity.position.x, digits);
+                out.write(' ');
+                writeInt(out, entity.position.y, digits);
+                out.write(' ');
+                writeInt(out, entity.imageIndex, digits);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static void writeInt(Writer out, int value, char[] digits) throws IOException {
+        int start = digits.length;
+        long rest = Math.abs((long) value);
+        do {
+            digits[--start] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            digits[--start] = '-';
+        }
+        out.write(digits, start, digits.length - start);
+    }
+
+    /*
+       What one entity adds to the state hash: a mix of exactly what its
+       log line shows. Entities that aren't logged add nothing. The world's
+       hash is the sum of these, so it doesn't depend on entity order and
+       one entity changing only takes a subtraction and an addition.
+    */
+    public static long hashEntity(Entity entity) {
+        if (entity.id.isEmpty()) {
+            return 0;
+        }
+        long hash = entity.id.hashCode();
+        hash = hash * 0x9E3779B97F4A7C15L + entity.position.x;
+        hash = hash * 0x9E3779B97F4A7C15L + entity.position.y;
+        hash = hash * 0x9E3779B97F4A7C15L + entity.imageIndex;
+        // splitmix64 finalizer, so nearby states end up far apart
+        hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+        return hash ^ (hash >>> 31);
+    }
+
+    // the state hash from scratch, for checking the incremental one
+    public static long computeStateHash(WorldModel world) {
+        long hash = 0;
+        for (Entity entity : world.entities) {
+            hash += hashEntity(entity);
+        }
+        return hash;
+    }
+
+    // updates stateHash after something in the entity's log line changed
+    public static void rehash(WorldModel world, Entity entity) {
+        long hash = hashEntity(entity);
+        world.stateHash += hash - entity.stateHash;
+        entity.stateHash = hash;
+    }
+
     public static boolean withinBounds(WorldModel world, Point pos) {
         return pos.y >= 0 && pos.y < world.numRows && pos.x >= 0 && pos.x < world.numCols;
     }
 
     public static boolean isOccupied(WorldModel world, Point pos) {
-        return withinBounds(world, pos) && getOccupancyCell(world, pos) != null;
+        return withinBounds(world, pos) && isBlocked(world, cellIndex(world, pos));
+    }
+
+    /*
+       Allocates empty occupancy for numRows x numCols. The grid has a one
+       cell border that counts as occupied, so a step of one cell from
+       anywhere inside the world can be tested without bounds checks.
+    */
+    public static void initOccupancy(WorldModel world) {
+        initStorage(world);
+        if (world.sparse) {
+            world.occupancyChunks = new Entity[chunkCount(world)][];
+            return;
+        }
+        int cells = cellCount(world);
+        world.occupancy = new Entity[cells];
+        world.occupied = new long[(cells + 63) / 64];
+        for (int col = 0; col < world.stride; col++) {
+            setBit(world.occupied, col);
+            setBit(world.occupied, (world.numRows + 1) * world.stride + col);
+        }
+        for (int row = 1; row <= world.numRows; row++) {
+            setBit(world.occupied, row * world.stride);
+            setBit(world.occupied, row * world.stride + world.numCols + 1);
+        }
+    }
+
+    /*
+       Starts the world over without entities: empty occupancy and nothing
+       left in the entity set, the per kind registries, the reservations,
+       the flow fields or the state hash. Called for every Entities:
+       header, so a repeated one doesn't leave the earlier entities behind
+       anywhere.
+    */
+    public static void resetEntities(WorldModel world) {
+        initOccupancy(world);
+        world.entities = new HashSet<>();
+        for (Entity[] registry : world.kindEntities) {
+            Arrays.fill(registry, null);
+        }
+        Arrays.fill(world.kindCounts, 0);
+        Arrays.fill(world.kindVersions, 0);
+        world.reservations.clear();
+        world.flowFields.clear();
+        world.stateHash = 0;
+    }
+
+    // decides between dense and sparse storage once the size of the world is known
+    public static void initStorage(WorldModel world) {
+        if ((long) world.numRows * world.numCols >= SPARSE_MIN_CELLS) {
+            world.sparse = true;
+        }
+        world.stride = world.numCols + 2;
+        if (world.sparse) {
+            world.strideBits = 32 - Integer.numberOfLeadingZeros(world.stride - 1);
+            world.stride = 1 << world.strideBits;
+        }
+        world.chunkCols = (world.stride + CHUNK_SIZE - 1) >> CHUNK_BITS;
+    }
+
+    public static int cellCount(WorldModel world) {
+        return (world.numRows + 2) * world.stride;
+    }
+
+    public static int chunkCount(WorldModel world) {
+        return ((world.numRows + 2 + CHUNK_SIZE - 1) >> CHUNK_BITS) * world.chunkCols;
+    }
+
+    // row and col count the border, like cellIndex does
+    public static int chunkIndex(WorldModel world, int row, int col) {
+        return (row >> CHUNK_BITS) * world.chunkCols + (col >> CHUNK_BITS);
+    }
+
+    public static int chunkOffset(int row, int col) {
+        return (row & (CHUNK_SIZE - 1)) << CHUNK_BITS | (col & (CHUNK_SIZE - 1));
+    }
+
+    // pos may be at most one cell outside the world
+    public static int cellIndex(WorldModel world, Point pos) {
+        return (pos.y + 1) * world.stride + pos.x + 1;
+    }
+
+    public static boolean isBlocked(WorldModel world, int index) {
+        if (world.occupied != null) {
+            return (world.occupied[index >>> 6] & (1L << index)) != 0;
+        }
+        int row = index >>> world.strideBits;
+        int col = index & (world.stride - 1);
+        return row == 0 || col == 0 || row > world.numRows || col > world.numCols || occupantAt(world, index) != null;
+    }
+
+    // the entity in the cell with the given cellIndex, or null
+    public static Entity occupantAt(WorldModel world, int index) {
+        if (world.occupancy != null) {
+            return world.occupancy[index];
+        }
+        int row = index >>> world.strideBits;
+        int col = index & (world.stride - 1);
+        Entity[] chunk = world.occupancyChunks[chunkIndex(world, row, col)];
+        return chunk == null ? null : chunk[chunkOffset(row, col)];
+    }
+
+    /*
+       The chunk of a sparse world holding the cell, allocated if it
+       doesn't exist yet. Movers claim cells from several threads in
+       concurrent mode, so a new chunk is only put in place if no other
+       thread got there first.
+    */
+    private static Entity[] occupancyChunk(WorldModel world, int index) {
+        int chunk = chunkIndex(world, index >>> world.strideBits, index & (world.stride - 1));
+        Entity[] cells = (Entity[]) CHUNKS.getVolatile(world.occupancyChunks, chunk);
+        if (cells == null) {
+            Entity[] fresh = new Entity[CHUNK_SIZE * CHUNK_SIZE];
+            Entity[] witness = (Entity[]) CHUNKS.compareAndExchange(world.occupancyChunks, chunk, null, fresh);
+            cells = witness == null ? fresh : witness;
+        }
+        return cells;
+    }
+
+    private static int chunkOffset(WorldModel world, int index) {
+        return chunkOffset(index >>> world.strideBits, index & (world.stride - 1));
+    }
+
+    private static void setBit(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
     }
 
     public static Optional<Entity> findNearest(WorldModel world, Point pos, List<EntityKind> kinds) {
-        List<Entity> ofType = new LinkedList<>();
+        Profiling.NearestSearch event = new Profiling.NearestSearch();
+        event.begin();
+        List<Entity> ofType = new ArrayList<>();
         for (EntityKind kind : kinds) {
-            for (Entity entity : world.entities) {
-                if (entity.kind == kind) {
-                    ofType.add(entity);
+            ofType.addAll(Arrays.asList(world.kindEntities[kind.ordinal()]).subList(0, world.kindCounts[kind.ordinal()]));
+        }
+
+        Optional<Entity> nearest = Entity.nearestEntity(ofType, pos);
+        commitSearch(event, kinds, ofType.size(), nearest.isPresent());
+        return nearest;
+    }
+
+    private static void commitSearch(Profiling.NearestSearch event, List<EntityKind> kinds, int candidates, boolean found) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.kinds = Profiling.kindNames(kinds);
+            event.candidates = candidates;
+            event.found = found;
+            event.commit();
+        }
+    }
+
+    public static int population(WorldModel world, EntityKind kind) {
+        return world.kindCounts[kind.ordinal()];
+    }
+
+    public static void registerEntity(WorldModel world, Entity entity) {
+        int kind = entity.kind.ordinal();
+        Entity[] registry = world.kindEntities[kind];
+        if (world.kindCounts[kind] == registry.length) {
+            registry = world.kindEntities[kind] = Arrays.copyOf(registry, registry.length * 2);
+        }
+        entity.registryIndex = world.kindCounts[kind]++;
+        registry[entity.registryIndex] = entity;
+    }
+
+    // moves the last entity of the kind into the freed slot
+    public static void unregisterEntity(WorldModel world, Entity entity) {
+        int kind = entity.kind.ordinal();
+        Entity[] registry = world.kindEntities[kind];
+        Entity last = registry[--world.kindCounts[kind]];
+        registry[entity.registryIndex] = last;
+        last.registryIndex = entity.registryIndex;
+        registry[world.kindCounts[kind]] = null;
+    }
+
+    /*
+       Like findNearest, but remembers the answer on the seeking entity and
+       only searches again when an entity of one of the kinds has been
+       added, removed or moved since, or when the seeker has moved far
+       enough that another candidate could have become nearer. The cached
+       target stays strictly nearest while its distance plus how far the
+       seeker moved is below the second-nearest distance at search time.
+
+       The answer is remembered as its slot in kindEntities rather than as
+       the entity: slots only change along with the kinds' versions, and a
+       target that leaves the world isn't kept alive by its seekers.
+    */
+    public static Optional<Entity> findNearestCached(WorldModel world, Entity seeker, List<EntityKind> kinds) {
+        long version = kindsVersion(world, kinds);
+
+        if (seeker.targetVersion == version) {
+            if (seeker.targetKind == null) {
+                return Optional.empty();
+            }
+            Entity target = world.kindEntities[seeker.targetKind.ordinal()][seeker.targetSlot];
+            double moved = Math.sqrt(Point.distanceSquared(seeker.position, seeker.targetFrom));
+            double distance = Math.sqrt(Point.distanceSquared(seeker.position, target.position));
+            if (distance + moved < seeker.targetMargin - 1e-9) {
+                return Optional.of(target);
+            }
+        }
+
+        if (world.concurrent) {
+            SEARCHES.getAndAdd(world, 1L);
+        } else {
+            world.searches++;
+        }
+        Profiling.NearestSearch event = new Profiling.NearestSearch();
+        event.begin();
+        Entity nearest = null;
+        int nearestDistance = Integer.MAX_VALUE;
+        int secondDistance = Integer.MAX_VALUE;
+        int candidates = 0;
+        for (EntityKind kind : kinds) {
+            Entity[] registry = world.kindEntities[kind.ordinal()];
+            candidates += world.kindCounts[kind.ordinal()];
+            for (int i = 0; i < world.kindCounts[kind.ordinal()]; i++) {
+                Entity entity = registry[i];
+                int distance = Point.distanceSquared(entity.position, seeker.position);
+                if (distance < nearestDistance) {
+                    secondDistance = nearestDistance;
+                    nearest = entity;
+                    nearestDistance = distance;
+                } else if (distance < secondDistance) {
+                    secondDistance = distance;
                 }
             }
         }
 
-        return Entity.nearestEntity(ofType, pos);
+        seeker.targetKind = nearest == null ? null : nearest.kind;
+        seeker.targetSlot = nearest == null ? 0 : nearest.registryIndex;
+        seeker.targetFrom = seeker.position;
+        seeker.targetMargin = secondDistance == Integer.MAX_VALUE ? Double.POSITIVE_INFINITY : Math.sqrt(secondDistance);
+        seeker.targetVersion = version;
+        commitSearch(event, kinds, candidates, nearest != null);
+        return Optional.ofNullable(nearest);
+    }
+
+    /*
+       Hands out targets so that dudes spread over them instead of all
+       walking to the same one: a dude keeps its target until the target
+       leaves the world, and otherwise gets the nearest target no other
+       dude holds. Only when every target is held does it share the
+       nearest one, without holding it.
+    */
+    public static Optional<Entity> reserveTarget(WorldModel world, Entity dude, List<EntityKind> kinds) {
+        if (dude.reserved != null) {
+            return Optional.of(dude.reserved);
+        }
+
+        if (world.concurrent) {
+            SEARCHES.getAndAdd(world, 1L);
+        } else {
+            world.searches++;
+        }
+        Entity nearest = null;
+        Entity nearestFree = null;
+        int nearestDistance = Integer.MAX_VALUE;
+        int nearestFreeDistance = Integer.MAX_VALUE;
+        for (EntityKind kind : kinds) {
+            Entity[] registry = world.kindEntities[kind.ordinal()];
+            for (int i = 0; i < world.kindCounts[kind.ordinal()]; i++) {
+                int distance = Point.distanceSquared(registry[i].position, dude.position);
+                if (distance < nearestDistance) {
+                    nearest = registry[i];
+                    nearestDistance = distance;
+                }
+                if (distance < nearestFreeDistance && !world.reservations.containsKey(registry[i])) {
+                    nearestFree = registry[i];
+                    nearestFreeDistance = distance;
+                }
+            }
+        }
+
+        if (nearestFree != null) {
+            world.reservations.put(nearestFree, dude);
+            dude.reserved = nearestFree;
+            return Optional.of(nearestFree);
+        }
+        return Optional.ofNullable(nearest);
+    }
+
+    // drops any reservation the entity holds or is the target of
+    public static void releaseReservations(WorldModel world, Entity entity) {
+        if (entity.reserved != null) {
+            world.reservations.remove(entity.reserved);
+            entity.reserved = null;
+        }
+        Entity holder = world.reservations.remove(entity);
+        if (holder != null) {
+            holder.reserved = null;
+        }
+    }
+
+    public static long kindsVersion(WorldModel world, List<EntityKind> kinds) {
+        long version = 0;
+        for (EntityKind kind : kinds) {
+            version += world.kindVersions[kind.ordinal()];
+        }
+        return version;
+    }
+
+    // pos is the cell the entity entered or left
+    public static void entityChanged(WorldModel world, Entity entity, Point pos) {
+        world.kindVersions[entity.kind.ordinal()]++;
+        if (!world.flowFields.isEmpty() && !FlowField.moves(entity.kind)) {
+            for (FlowField field : world.flowFields.values()) {
+                FlowField.cellChanged(field, world, cellIndex(world, pos));
+            }
+        }
     }
 
     /*
@@ -65,10 +502,76 @@ public final class WorldModel {
     }
 
     public static Entity getOccupancyCell(WorldModel world, Point pos) {
-        return world.occupancy[pos.y][pos.x];
+        return occupantAt(world, cellIndex(world, pos));
     }
 
     public static void setOccupancyCell(WorldModel world, Point pos, Entity entity) {
-        world.occupancy[pos.y][pos.x] = entity;
+        int index = cellIndex(world, pos);
+        if (world.sparse) {
+            if (entity == null && occupantAt(world, index) == null) {
+                return;
+            }
+            Entity[] chunk = occupancyChunk(world, index);
+            if (world.concurrent) {
+                CELLS.setVolatile(chunk, chunkOffset(world, index), entity);
+            } else {
+                chunk[chunkOffset(world, index)] = entity;
+            }
+            return;
+        }
+        if (world.concurrent) {
+            CELLS.setVolatile(world.occupancy, index, entity);
+            if (entity != null) {
+                WORDS.getAndBitwiseOr(world.occupied, index >>> 6, 1L << index);
+            } else {
+                WORDS.getAndBitwiseAnd(world.occupied, index >>> 6, ~(1L << index));
+            }
+            return;
+        }
+        world.occupancy[index] = entity;
+        if (entity != null) {
+            world.occupied[index >>> 6] |= 1L << index;
+        } else {
+            world.occupied[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /*
+       Puts the entity into the cell if nobody is in it, as one atomic step.
+       Returns false if the cell was taken.
+    */
+    public static boolean claimCell(WorldModel world, int index, Entity entity) {
+        if (world.sparse) {
+            return CELLS.compareAndSet(occupancyChunk(world, index), chunkOffset(world, index), null, entity);
+        }
+        if (!CELLS.compareAndSet(world.occupancy, index, null, entity)) {
+            return false;
+        }
+        WORDS.getAndBitwiseOr(world.occupied, index >>> 6, 1L << index);
+        return true;
+    }
+
+    // empties the cell if the entity is still the one in it
+    public static boolean releaseCell(WorldModel world, int index, Entity entity) {
+        if (world.sparse) {
+            return CELLS.compareAndSet(occupancyChunk(world, index), chunkOffset(world, index), entity, null);
+        }
+        if (!CELLS.compareAndSet(world.occupancy, index, entity, null)) {
+            return false;
+        }
+        WORDS.getAndBitwiseAnd(world.occupied, index >>> 6, ~(1L << index));
+        return true;
+    }
+
+    /*
+       Switches the world into concurrent mode: from now on occupancy is
+       only written atomically, and the entity set can be read while it
+       changes.
+    */
+    public static void makeConcurrent(WorldModel world) {
+        Set<Entity> entities = ConcurrentHashMap.newKeySet();
+        entities.addAll(world.entities);
+        world.entities = entities;
+        world.concurrent = true;
     }
 }
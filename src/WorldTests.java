@@ -1,6 +1,32 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
+import javax.imageio.ImageIO;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
+import processing.core.PApplet;
+import processing.core.PImage;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -14,6 +40,20 @@ public class WorldTests {
         return sb.toString();
     }
 
+    // default densities without fairies and saplings, whose trees get random periods, so runs can be compared
+    private static Map<String, Double> deterministicDensities() {
+        Map<String, Double> densities = WorldGenerator.defaultDensities();
+        densities.put(Functions.FAIRY_KEY, 0.0);
+        densities.put(Functions.SAPLING_KEY, 0.0);
+        return densities;
+    }
+
+    private static List<String> sortedLog(String[] args, double lifetime) {
+        List<String> log = new ArrayList<>(VirtualWorld.headlessMain(args, lifetime));
+        Collections.sort(log);
+        return log;
+    }
+
     @Test
     public void testTreeAnimation() {
         String sav = makeSave(1, 1, "tree mytree 0 0 0.250 100.0 1");
@@ -74,6 +114,25 @@ public class WorldTests {
 
     }
 
+    @Test
+    public void testRepeatedEntitiesHeader() {
+        String sav = makeSave(1, 3, "tree mytree 0 0 0.250 100.0 1", "dude mydude 1 0 0.300 100.0 1") + "Entities:\nhouse myhouse 2 0\n";
+        WorldModel world = Benchmarks.headlessWorld(sav).world;
+
+        assertEquals(List.of("myhouse 2 0 0"), world.log());
+        assertEquals(0, WorldModel.population(world, EntityKind.TREE));
+        assertEquals(0, WorldModel.population(world, EntityKind.DUDE_NOT_FULL));
+        assertNull(world.kindEntities[EntityKind.TREE.ordinal()][0]);
+        assertEquals(WorldModel.computeStateHash(world), world.stateHash);
+        assertTrue(WorldModel.findNearest(world, new Point(2, 0), Action.DUDE_NOT_FULL_TARGETS).isEmpty());
+    }
+
+    @Test
+    public void testEntityLog() {
+        assertEquals("mytree 3 4 0", Entity.createTree("mytree", new Point(3, 4), 1.0, 1.0, 1, List.of()).log());
+        assertNull(Entity.createHouse("", new Point(0, 0), List.of()).log());
+    }
+
     @Test
     public void testWithinBounds() {
         String sav = makeSave(9, 4, "house houseiry 4 9");
@@ -204,4 +263,589 @@ public class WorldTests {
 
         assertTrue(entities.stream().anyMatch("mydude 4 2 0"::equals));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBoundedUpdate() {
+        String sav = makeSave(3, 5, "dude mydude 0 1 0.500 0.070 1", "tree mytree 2 1 0.250 0.001 1", "house myhouse 4 1", "obstacle myobstacle 0 0 0.130");
+        VirtualWorld bounded = Benchmarks.headlessWorld(sav);
+        EventScheduler.updateOnTime(bounded.scheduler, 5, 50, 0);
+        assertTrue(bounded.scheduler.lag > 0);
+        assertTrue(bounded.scheduler.eventsRun < 100);
+
+        // each later call only gets through another 50 events, until the lag is gone
+        int calls = 1;
+        while (bounded.scheduler.lag > 0) {
+            EventScheduler.updateOnTime(bounded.scheduler, bounded.scheduler.lag, 50, 0);
+            calls++;
+        }
+        assertTrue(calls > 2);
+        assertEquals(5, bounded.scheduler.currentTime, 1e-9);
+
+        VirtualWorld unbounded = Benchmarks.headlessWorld(sav);
+        unbounded.update(5);
+        assertEquals(unbounded.scheduler.eventsRun, bounded.scheduler.eventsRun);
+        assertEquals(unbounded.world.stateHash, bounded.world.stateHash);
+    }
+
+    @Test
+    public void testLazyAnimation() {
+        String[] saves = {
+                makeSave(1, 1, "tree mytree 0 0 0.250 100.0 1"),
+                makeSave(1, 1, "fairy myfairy 0 0 0.100 100.0"),
+                makeSave(1, 2, "obstacle myobstacle 0 0 0.500", "obstacle other 1 0 0.300"),
+                makeSave(3, 5, "dude mydude 0 1 0.500 0.070 1", "tree mytree 2 1 0.250 0.001 1", "house myhouse 4 1")
+        };
+        for (String sav : saves) {
+            List<String> eager = VirtualWorld.headlessMain(new String[]{sav}, 7);
+            List<String> lazy = VirtualWorld.headlessMain(new String[]{VirtualWorld.LAZY_ANIMATION_FLAG, sav}, 7);
+
+            assertEquals(eager.stream().sorted().toList(), lazy.stream().sorted().toList());
+        }
+    }
+
+    @Test
+    public void testLevelOfDetail() {
+        // both plants are well right of the viewport, so they start on the coarse schedule
+        String sav = makeSave(15, 40, "tree mytree 30 5 100.0 1.0 5", "dude mydude 31 5 0.300 100.0 10", "tree other 36 10 100.0 0.700 5");
+        List<VirtualWorld> runs = new ArrayList<>();
+        for (String[] flags : new String[][]{{}, {VirtualWorld.LOD_FLAG}}) {
+            VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav, flags);
+            EventScheduler.updateOnTime(virtualWorld.scheduler, 4.1);
+            WorldView.shiftView(virtualWorld.view, 20, 0);
+            if (virtualWorld.scheduler.region != null) {
+                Action.refreshRegion(virtualWorld.world, virtualWorld.imageStore, virtualWorld.scheduler);
+            }
+            EventScheduler.updateOnTime(virtualWorld.scheduler, 8);
+            runs.add(virtualWorld);
+        }
+        WorldModel full = runs.get(0).world;
+        WorldModel coarse = runs.get(1).world;
+        assertEquals(full.log().stream().sorted().toList(), coarse.log().stream().sorted().toList());
+        // the dude stopped harvesting each tree when it withered, not when its coarse wait was over
+        Entity fullDude = full.entities.stream().filter(e -> e.id.equals("mydude")).findAny().orElseThrow();
+        Entity coarseDude = coarse.entities.stream().filter(e -> e.id.equals("mydude")).findAny().orElseThrow();
+        assertEquals(fullDude.resourceCount, coarseDude.resourceCount);
+        assertEquals(EntityKind.STUMP, WorldModel.getOccupancyCell(coarse, new Point(30, 5)).kind);
+    }
+
+    @Test
+    public void testCachedTargets() {
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(makeSave(20, 20));
+        WorldModel world = virtualWorld.world;
+        Random random = new Random(29);
+        List<Entity> seekers = new ArrayList<>();
+        List<Entity> targets = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            Point pos = new Point(random.nextInt(20), random.nextInt(20));
+            if (!WorldModel.isOccupied(world, pos)) {
+                Entity entity = i < 8 ? Entity.createDudeNotFull("dude" + i, pos, 1, 1, 1, List.of()) : Entity.createTree("tree" + i, pos, 1, 1, 1, List.of());
+                Entity.addEntity(world, entity);
+                (i < 8 ? seekers : targets).add(entity);
+            }
+        }
+
+        // whatever changes, the cached answer must be the one a full search gives
+        for (int step = 0; step < 2000; step++) {
+            Point pos = new Point(random.nextInt(20), random.nextInt(20));
+            int change = random.nextInt(4);
+            if (change == 0 || targets.isEmpty()) {
+                if (!WorldModel.isOccupied(world, pos)) {
+                    Entity tree = Entity.createTree("tree", pos, 1, 1, 1, List.of());
+                    Entity.addEntity(world, tree);
+                    targets.add(tree);
+                }
+            } else if (change == 1) {
+                Entity.removeEntity(world, virtualWorld.scheduler, targets.remove(random.nextInt(targets.size())));
+            } else {
+                List<Entity> movers = change == 2 ? targets : seekers;
+                Entity mover = movers.get(random.nextInt(movers.size()));
+                Point next = new Point(mover.position.x + random.nextInt(3) - 1, mover.position.y + random.nextInt(3) - 1);
+                if (WorldModel.withinBounds(world, next) && !WorldModel.isOccupied(world, next)) {
+                    Entity.moveEntity(world, virtualWorld.scheduler, mover, next);
+                }
+            }
+            for (Entity seeker : seekers) {
+                assertEquals(WorldModel.findNearest(world, seeker.position, Action.DUDE_NOT_FULL_TARGETS),
+                        WorldModel.findNearestCached(world, seeker, Action.DUDE_NOT_FULL_TARGETS), "step " + step);
+            }
+        }
+        assertTrue(world.searches < 2000L * seekers.size());
+
+        // the seeker only remembers a registry slot, which a removed target no longer holds
+        Entity seeker = seekers.get(0);
+        Entity target = WorldModel.findNearestCached(world, seeker, Action.DUDE_NOT_FULL_TARGETS).orElseThrow();
+        Entity.removeEntity(world, virtualWorld.scheduler, target);
+        assertNotSame(target, world.kindEntities[seeker.targetKind.ordinal()][seeker.targetSlot]);
+        assertNotSame(target, WorldModel.findNearestCached(world, seeker, Action.DUDE_NOT_FULL_TARGETS).orElse(null));
+    }
+
+    @Test
+    public void testWorldReload() throws IOException {
+        Path file = Files.createTempFile("world", ".sav");
+        Files.writeString(file, makeSave(3, 6, "obstacle myobstacle 0 0 1.126", "house  5 0", "house  0 2", "stump mystump 5 2"));
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(file.toString());
+        WorldModel world = virtualWorld.world;
+        WorldWatcher watcher = WorldWatcher.create(file.toString(), VirtualWorld.IMAGE_LIST_FILE_NAME, world, virtualWorld.imageStore);
+        Entity obstacle = WorldModel.getOccupancyCell(world, new Point(0, 0));
+        Entity house = WorldModel.getOccupancyCell(world, new Point(0, 2));
+        Entity stump = WorldModel.getOccupancyCell(world, new Point(5, 2));
+
+        // the obstacle is edited, one house removed, the other house and the stump moved
+        Files.writeString(file, makeSave(3, 6, "obstacle myobstacle 0 0 2.0", "house  1 2", "stump mystump 4 2"));
+        assertTrue(WorldWatcher.reloadWorld(watcher, world, virtualWorld.scheduler, virtualWorld.imageStore));
+        Entity edited = WorldModel.getOccupancyCell(world, new Point(0, 0));
+        assertNotSame(obstacle, edited);
+        assertEquals(2.0, edited.animationPeriod);
+        assertNull(WorldModel.getOccupancyCell(world, new Point(5, 0)));
+        assertSame(house, WorldModel.getOccupancyCell(world, new Point(1, 2)));
+        assertSame(stump, WorldModel.getOccupancyCell(world, new Point(4, 2)));
+        assertEquals(3, world.entities.size());
+        assertEquals(WorldModel.computeStateHash(world), world.stateHash);
+
+        // the handles survive a second reload, which moves both back
+        Files.writeString(file, makeSave(3, 6, "obstacle myobstacle 0 0 2.0", "house  0 2", "stump mystump 5 2"));
+        assertTrue(WorldWatcher.reloadWorld(watcher, world, virtualWorld.scheduler, virtualWorld.imageStore));
+        assertSame(edited, WorldModel.getOccupancyCell(world, new Point(0, 0)));
+        assertSame(house, WorldModel.getOccupancyCell(world, new Point(0, 2)));
+        assertSame(stump, WorldModel.getOccupancyCell(world, new Point(5, 2)));
+
+        List<PImage> houseImages = house.images;
+        WorldWatcher.reloadImages(watcher, world, virtualWorld.imageStore, virtualWorld);
+        assertNotSame(houseImages, house.images);
+        assertSame(ImageStore.getImageList(virtualWorld.imageStore, Functions.HOUSE_KEY), house.images);
+        Files.delete(file);
+    }
+
+    @Test
+    public void testReservedTargets() {
+        String sav = makeSave(1, 7, "tree first 0 0 100.0 100.0 5", "dude near 1 0 100.0 100.0 5", "dude far 2 0 100.0 100.0 5", "tree second 6 0 100.0 100.0 5");
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav, VirtualWorld.RESERVE_FLAG);
+        WorldModel world = virtualWorld.world;
+        Entity first = WorldModel.getOccupancyCell(world, new Point(0, 0));
+        Entity near = WorldModel.getOccupancyCell(world, new Point(1, 0));
+        Entity far = WorldModel.getOccupancyCell(world, new Point(2, 0));
+        Entity second = WorldModel.getOccupancyCell(world, new Point(6, 0));
+
+        // both are nearest to the first tree, the one that asks second gets the other tree
+        assertSame(first, WorldModel.reserveTarget(world, near, Action.DUDE_NOT_FULL_TARGETS).orElseThrow());
+        assertSame(second, WorldModel.reserveTarget(world, far, Action.DUDE_NOT_FULL_TARGETS).orElseThrow());
+        assertSame(near, world.reservations.get(first));
+        assertSame(far, world.reservations.get(second));
+
+        // a dude that goes full lets go of its tree
+        Entity.changeKind(world, near, EntityKind.DUDE_FULL);
+        assertNull(near.reserved);
+        assertFalse(world.reservations.containsKey(first));
+
+        // a removed tree is let go of by its dude, which then takes the free one
+        Entity.removeEntity(world, virtualWorld.scheduler, second);
+        assertNull(far.reserved);
+        assertFalse(world.reservations.containsKey(second));
+        assertSame(first, WorldModel.reserveTarget(world, far, Action.DUDE_NOT_FULL_TARGETS).orElseThrow());
+
+        // and so is one that turns into a stump
+        Entity.transformInPlace(world, virtualWorld.scheduler, first, EntityKind.STUMP, "stump_first", first.images, 0, 0, 0);
+        assertNull(far.reserved);
+        assertTrue(world.reservations.isEmpty());
+    }
+
+    @Test
+    public void testGeneratedWorld() throws IOException {
+        StringWriter first = new StringWriter();
+        StringWriter second = new StringWriter();
+        WorldGenerator.generate(first, 30, 40, 7, WorldGenerator.defaultDensities(), List.of("grass", "flowers"));
+        WorldGenerator.generate(second, 30, 40, 7, WorldGenerator.defaultDensities(), List.of("grass", "flowers"));
+
+        assertEquals(first.toString(), second.toString());
+
+        List<String> entities = VirtualWorld.headlessMain(new String[]{first.toString()}, 0);
+        long lines = first.toString().lines().dropWhile(line -> !line.equals("Entities:")).count() - 1;
+        assertEquals(lines, entities.size());
+    }
+
+    @Test
+    public void testFlowFieldRepair() throws IOException {
+        Map<String, Double> densities = WorldGenerator.defaultDensities();
+        densities.put(Functions.TREE_KEY, 0.2);
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(Benchmarks.generatedWorld(30, densities), VirtualWorld.FLOW_FIELD_FLAG, VirtualWorld.RESERVE_FLAG);
+        assertFalse(virtualWorld.world.reserveTargets);
+        virtualWorld.update(20);
+
+        for (Map.Entry<List<EntityKind>, FlowField> entry : virtualWorld.world.flowFields.entrySet()) {
+            FlowField repaired = FlowField.get(virtualWorld.world, entry.getKey(), entry.getValue().trampleStumps);
+            FlowField rebuilt = new FlowField(entry.getKey(), repaired.trampleStumps);
+            FlowField.build(rebuilt, virtualWorld.world);
+            assertArrayEquals(rebuilt.distance, repaired.distance);
+        }
+    }
+
+    @Test
+    public void testParallelMode() throws IOException {
+        Map<String, Double> densities = deterministicDensities();
+        densities.put(Functions.DUDE_KEY, 0.05);
+        // one action period for every dude, so they move in big batches
+        String sav = Benchmarks.generatedWorld(40, densities).replaceAll("(?m)^(dude \\S+ \\d+ \\d+) \\S+", "$1 0.800");
+        assertEquals(sortedLog(new String[]{sav}, 30), sortedLog(new String[]{VirtualWorld.PARALLEL_FLAG, sav}, 30));
+
+        // steps far enough from every other mover are claimed on the pool, with dense and sparse storage
+        VirtualWorld serial = Benchmarks.headlessWorld(sav);
+        serial.update(30);
+        for (String[] flags : new String[][]{{VirtualWorld.PARALLEL_FLAG}, {VirtualWorld.PARALLEL_FLAG, VirtualWorld.SPARSE_FLAG}}) {
+            VirtualWorld parallel = Benchmarks.headlessWorld(sav, flags);
+            parallel.update(30);
+            assertTrue(parallel.scheduler.stepsClaimed > 0);
+            assertEquals(serial.world.stateHash, parallel.world.stateHash);
+        }
+    }
+
+    @Test
+    public void testTransformInPlace() {
+        String sav = makeSave(3, 5, "dude mydude 0 1 0.500 100.0 1", "tree mytree 2 1 0.250 0.001 1", "house  0 2");
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav);
+        Entity dude = WorldModel.getOccupancyCell(virtualWorld.world, new Point(0, 1));
+        Entity tree = WorldModel.getOccupancyCell(virtualWorld.world, new Point(2, 1));
+        virtualWorld.update(1.2);
+
+        // the dude has harvested the tree and not yet reached the house
+        assertEquals(EntityKind.DUDE_FULL, dude.kind);
+        assertEquals(EntityKind.STUMP, tree.kind);
+        assertEquals("stump_mytree", tree.id);
+        assertSame(tree, WorldModel.getOccupancyCell(virtualWorld.world, new Point(2, 1)));
+        assertEquals(1, WorldModel.population(virtualWorld.world, EntityKind.STUMP));
+        assertEquals(0, WorldModel.population(virtualWorld.world, EntityKind.TREE));
+        assertTrue(virtualWorld.world.entities.contains(dude));
+    }
+
+    @Test
+    public void testStateHash() throws IOException {
+        String sav = Benchmarks.generatedWorld(30, deterministicDensities());
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav);
+        virtualWorld.update(15);
+        EventScheduler.syncAnimations(virtualWorld.scheduler, virtualWorld.world.entities);
+        assertEquals(WorldModel.computeStateHash(virtualWorld.world), virtualWorld.world.stateHash);
+
+        StringWriter log = new StringWriter();
+        WorldModel.writeLog(virtualWorld.world, log);
+        assertEquals(virtualWorld.world.log(), log.toString().lines().toList());
+
+        assertEquals(virtualWorld.world.stateHash, VirtualWorld.headlessHash(new String[]{sav}, 15));
+        assertNotEquals(virtualWorld.world.stateHash, VirtualWorld.headlessHash(new String[]{sav}, 16));
+    }
+
+    @Test
+    public void testFastForward() throws IOException {
+        String sav = makeSave(2, 4, "obstacle myobstacle 0 0 0.130", "tree mytree 1 0 0.210 3600.0 1", "fairy myfairy 3 1 0.100 100.0");
+        assertEquals(VirtualWorld.headlessHash(new String[]{sav}, 601), VirtualWorld.headlessHash(new String[]{VirtualWorld.FAST_FORWARD_FLAG, sav}, 601));
+
+        String generated = Benchmarks.generatedWorld(30, deterministicDensities());
+        assertEquals(VirtualWorld.headlessHash(new String[]{generated}, 120), VirtualWorld.headlessHash(new String[]{VirtualWorld.FAST_FORWARD_FLAG, generated}, 120));
+
+        // only animations until the tree's first activity
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(makeSave(1, 2, "obstacle myobstacle 0 0 0.130", "tree mytree 1 0 0.210 3600.0 1"));
+        assertEquals(3600.0, EventScheduler.nextActivityTime(virtualWorld.scheduler));
+    }
+
+    @Test
+    public void testProfilingEvents() throws IOException {
+        String sav = makeSave(3, 3, "dude mydude 0 0 0.100 0.180 4", "tree mytree 2 2 0.250 0.100 3", "house myhouse 2 0");
+        Path file = Files.createTempFile("profiling", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(Profiling.SchedulerBatch.class);
+            recording.enable(Profiling.Activity.class);
+            recording.enable(Profiling.NearestSearch.class);
+            recording.enable(Profiling.LoadWorld.class);
+            recording.start();
+            VirtualWorld.headlessMain(new String[]{sav}, 10);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            counts.merge(event.getEventType().getName(), 1, Integer::sum);
+            if (event.getEventType().getName().equals("virtualworld.LoadWorld")) {
+                assertEquals(3, event.getInt("rows"));
+                assertEquals(3, event.getInt("entities"));
+            }
+        }
+        Files.delete(file);
+
+        assertEquals(1, counts.get("virtualworld.LoadWorld"));
+        assertTrue(counts.get("virtualworld.SchedulerBatch") > 100);
+        // the tree alone has 100 activities, of which one in 64 is recorded
+        assertTrue(counts.get("virtualworld.Activity") >= 1);
+        assertTrue(counts.get("virtualworld.NearestSearch") >= 1);
+    }
+
+    @Test
+    public void testBackgroundFrames() {
+        String sav = "Rows:\n2\nCols:\n2\nBackgrounds:\ngrass dirt\ngrass grass\nEntities:\n";
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav);
+        WorldModel world = virtualWorld.world;
+        assertSame(Background.getBackgroundCell(world, new Point(0, 0)), Background.getBackgroundCell(world, new Point(0, 1)));
+        // grass, dirt and the default background
+        assertEquals(3, world.backgroundTypes.size());
+
+        PImage first = new PImage(1, 1);
+        PImage second = new PImage(1, 1);
+        Background grass = Background.getBackgroundCell(world, new Point(0, 0));
+        grass.images = List.of(first, second);
+        Background.advanceFrames(world, 0.1);
+        assertSame(first, grass.image);
+        Background.advanceFrames(world, Functions.BACKGROUND_ANIMATION_PERIOD * 1.5);
+        assertSame(second, grass.image);
+        assertSame(second, ImageStore.getCurrentImage(Background.getBackgroundCell(world, new Point(1, 1))));
+        Background.advanceFrames(world, Functions.BACKGROUND_ANIMATION_PERIOD * 2.5);
+        assertSame(first, grass.image);
+    }
+
+    @Test
+    public void testKeyColor() {
+        PApplet screen = new PApplet();
+        for (int[] rgb : new int[][]{{0, 0, 0}, {255, 255, 255}, {12, 200, 7}, {300, -4, 128}}) {
+            assertEquals(screen.color(rgb[0], rgb[1], rgb[2]), ImageStore.keyColor(rgb[0], rgb[1], rgb[2]));
+        }
+    }
+
+    @Test
+    public void testImageSources() throws IOException {
+        Path directory = Files.createTempDirectory("images");
+        BufferedImage png = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        png.setRGB(0, 0, 0xff0000);
+        png.setRGB(1, 0, 0x00ff00);
+        Path file = directory.resolve("tile.png");
+        ImageIO.write(png, "png", file.toFile());
+
+        ImageStore imageStore = new ImageStore(VirtualWorld.createImageColored(1, 1, VirtualWorld.DEFAULT_IMAGE_COLOR));
+        imageStore.screen = new PApplet();
+        imageStore.cacheDir = directory.resolve("cache").toFile();
+        ImageStore.processImageLine(imageStore, "keyed " + file + " 255 0 0");
+        ImageStore.processImageLine(imageStore, "missing " + directory.resolve("missing.png"));
+        assertEquals(0xffff0000, imageStore.sources.get("keyed").get(0).keyColor);
+
+        for (int run = 0; run < 2; run++) {
+            PImage image = ImageStore.getImageList(imageStore, "keyed").get(0);
+            image.loadPixels();
+            assertEquals(0, image.pixels[0] >>> 24);
+            assertEquals(0xff00ff00, image.pixels[1]);
+            // the second time round comes from the cache
+            assertTrue(ImageStore.cacheFile(imageStore, new ImageSource("keyed", file.toString(), true, 0xffff0000)).isFile());
+            imageStore.images.clear();
+            ImageStore.processImageLine(imageStore, "keyed " + file + " 255 0 0");
+        }
+        assertSame(imageStore.defaultImages, ImageStore.getImageList(imageStore, "missing"));
+        imageStore.images.put("empty", new ArrayList<>());
+        assertSame(imageStore.defaultImages, ImageStore.getImageList(imageStore, "empty"));
+
+        // paths that differ only in characters a file name can't hold get their own entries
+        ImageSource slashed = new ImageSource("a", "x y/tile.png", false, 0);
+        ImageSource underscored = new ImageSource("a", "x_y/tile.png", false, 0);
+        assertNotEquals(ImageStore.cacheFile(imageStore, slashed), ImageStore.cacheFile(imageStore, underscored));
+    }
+
+    @Test
+    public void testSoftwareRenderer() throws IOException {
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld("Rows:\n1\nCols:\n2\nBackgrounds:\ngrass grass\nEntities:\nobstacle myobstacle 1 0 0.130\n");
+        PImage grass = VirtualWorld.createImageColored(VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT, 0xff0000);
+        PImage obstacle = new PImage(VirtualWorld.TILE_WIDTH, VirtualWorld.TILE_HEIGHT, PApplet.ARGB);
+        Arrays.fill(obstacle.pixels, 0xff0000ff);
+        obstacle.pixels[0] = 0;
+        obstacle.pixels[1] = 0x800000ff;
+        Background.getBackgroundCell(virtualWorld.world, new Point(0, 0)).images = List.of(grass);
+        WorldModel.getOccupancyCell(virtualWorld.world, new Point(1, 0)).images = List.of(obstacle);
+
+        SoftwareRenderer renderer = SoftwareRenderer.create(virtualWorld.view);
+        int[] frame = FrameExporter.renderFrame(virtualWorld, renderer);
+        int tile = VirtualWorld.TILE_WIDTH;
+        assertEquals(0xffff0000, frame[0]);
+        assertEquals(0xffff0000, frame[tile]);
+        assertEquals(0xff7f0080, frame[tile + 1]);
+        assertEquals(0xff0000ff, frame[tile + 2]);
+        assertEquals(SoftwareRenderer.EMPTY_COLOR, frame[2 * tile]);
+        assertEquals(SoftwareRenderer.EMPTY_COLOR, frame[frame.length - 1]);
+
+        Path directory = Files.createTempDirectory("frames");
+        for (String format : List.of(FrameExporter.RAW, FrameExporter.PNG)) {
+            FrameExporter exporter = FrameExporter.create(directory, format, renderer);
+            FrameExporter.export(exporter, frame);
+            FrameExporter.close(exporter);
+            Path file = FrameExporter.framePath(exporter, 0);
+            if (format.equals(FrameExporter.RAW)) {
+                IntBuffer ints = ByteBuffer.wrap(Files.readAllBytes(file)).asIntBuffer();
+                int[] read = new int[ints.remaining()];
+                ints.get(read);
+                assertArrayEquals(frame, read);
+            } else {
+                BufferedImage image = ImageIO.read(file.toFile());
+                assertEquals(renderer.width, image.getWidth());
+                assertEquals(frame[tile + 2], image.getRGB(tile + 2, 0));
+            }
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testOverview() throws IOException {
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(Benchmarks.generatedWorld(37, WorldGenerator.defaultDensities()));
+        WorldModel world = virtualWorld.world;
+        Overview overview = Overview.create(world);
+        assertEquals(world.entities.size(), overview.counts[overview.counts.length - 1][0]);
+
+        virtualWorld.update(30);
+        Background dirt = Background.ofType(world, "dirt", virtualWorld.imageStore);
+        Background.setBackgroundCell(world, new Point(36, 36), dirt);
+
+        // kept up to date cell by cell, it must match one built from scratch
+        world.overview = null;
+        Overview rebuilt = Overview.create(world);
+        for (int level = 0; level < overview.colors.length; level++) {
+            assertArrayEquals(rebuilt.colors[level], overview.colors[level], "colors at level " + level);
+            assertArrayEquals(rebuilt.counts[level], overview.counts[level], "counts at level " + level);
+        }
+        assertEquals(Overview.typeColor(dirt), overview.colors[0][36 * 37 + 36]);
+        assertEquals(1, overview.levelCols[overview.levelCols.length - 1]);
+        assertEquals(0, Overview.levelFor(overview, 40, 40));
+        assertEquals(2, Overview.levelFor(overview, 10, 10));
+    }
+
+    @Test
+    public void testOverviewWeights() {
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld("Rows:\n1\nCols:\n3\nBackgrounds:\ngrass grass dirt\nEntities:\nobstacle myobstacle 2 0 0.130\n");
+        WorldModel world = virtualWorld.world;
+        Background grass = Background.getBackgroundCell(world, 0, 0);
+        Background dirt = Background.getBackgroundCell(world, 2, 0);
+        grass.images = List.of(VirtualWorld.createImageColored(2, 2, 0x000000), VirtualWorld.createImageColored(2, 2, 0x0000f0));
+        dirt.images = List.of(VirtualWorld.createImageColored(2, 2, 0x300000));
+
+        // every frame counts, not just the current one
+        assertEquals(0x000078, Overview.typeColor(grass));
+        Overview overview = Overview.create(world);
+        // two grass cells against one dirt cell
+        assertEquals(0x100050, overview.colors[2][0]);
+        // the one cell block on the right edge is entirely taken by the obstacle
+        int[] pixels = new int[2];
+        Overview.compose(overview, 1, pixels);
+        assertEquals(0xff000000 | Overview.ENTITY_COLOR, pixels[1]);
+        assertEquals(0xff000078, pixels[0]);
+    }
+
+    @Test
+    public void testSparseWorld() {
+        String sav = makeSave(5, 7, "dude mydude 0 0 0.100 0.180 4", "tree mytree 6 4 0.250 0.100 3", "house myhouse 6 0", "obstacle myobstacle 3 2 0.130", "fairy myfairy 0 4 0.100 0.300");
+        assertEquals(VirtualWorld.headlessHash(new String[]{sav}, 20), VirtualWorld.headlessHash(new String[]{VirtualWorld.SPARSE_FLAG, sav}, 20));
+        assertEquals(VirtualWorld.headlessHash(new String[]{VirtualWorld.PARALLEL_FLAG, sav}, 20), VirtualWorld.headlessHash(new String[]{VirtualWorld.SPARSE_FLAG, VirtualWorld.PARALLEL_FLAG, sav}, 20));
+        assertEquals(VirtualWorld.headlessHash(new String[]{VirtualWorld.FLOW_FIELD_FLAG, sav}, 20), VirtualWorld.headlessHash(new String[]{VirtualWorld.SPARSE_FLAG, VirtualWorld.FLOW_FIELD_FLAG, sav}, 20));
+
+        // large enough to be sparse without asking, with only two chunks holding anything
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(makeSave(5000, 5000, "obstacle myobstacle 4999 4999 0.130", "house myhouse 10 10"));
+        WorldModel world = virtualWorld.world;
+        assertTrue(world.sparse);
+        assertNull(world.occupancy);
+        assertEquals(2, Arrays.stream(world.occupancyChunks).filter(Objects::nonNull).count());
+        assertEquals(0, Arrays.stream(world.backgroundChunks).filter(Objects::nonNull).count());
+        assertSame(world.defaultBackground, Background.getBackgroundCell(world, new Point(2500, 2500)));
+        assertEquals("myhouse", WorldModel.getOccupancyCell(world, new Point(10, 10)).id);
+        assertTrue(WorldModel.isOccupied(world, new Point(4999, 4999)));
+        assertFalse(WorldModel.isOccupied(world, new Point(4998, 4999)));
+
+        Background grass = Background.ofType(world, "grass", virtualWorld.imageStore);
+        Background.setBackgroundCell(world, new Point(1000, 70), grass);
+        assertSame(grass, Background.getBackgroundCell(world, new Point(1000, 70)));
+        assertSame(world.defaultBackground, Background.getBackgroundCell(world, new Point(1001, 70)));
+        assertEquals(1, Arrays.stream(world.backgroundChunks).filter(Objects::nonNull).count());
+    }
+
+    @Test
+    public void testSparseBackground() {
+        StringBuilder sav = new StringBuilder("Rows:\n200\nCols:\n200\nBackgrounds:\n");
+        for (int row = 0; row < 200; row++) {
+            sav.append(String.join(" ", Collections.nCopies(200, row < 100 ? "grass" : "dirt"))).append('\n');
+        }
+        sav.append("Entities:\n");
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(sav.toString(), VirtualWorld.SPARSE_FLAG);
+        WorldModel world = virtualWorld.world;
+        assertEquals(256, world.stride);
+        Background grass = Background.getBackgroundCell(world, new Point(0, 0));
+        Background dirt = Background.getBackgroundCell(world, new Point(0, 199));
+        assertEquals("grass", grass.id);
+        assertEquals("dirt", dirt.id);
+
+        // only the row of chunks holding both grass and dirt, world rows 63 to 126, keeps its cells
+        for (int chunk = 0; chunk < world.backgroundChunks.length; chunk++) {
+            assertEquals(chunk / world.chunkCols == 1 && chunk % world.chunkCols < 4, world.backgroundChunks[chunk] != null);
+        }
+        assertSame(grass, world.backgroundFill[0]);
+        assertSame(dirt, world.backgroundFill[2 * world.chunkCols + 1]);
+        assertSame(grass, Background.getBackgroundCell(world, new Point(150, 99)));
+        assertSame(dirt, Background.getBackgroundCell(world, new Point(150, 100)));
+
+        // writing the fill keeps the chunk unallocated, anything else gets it back
+        Background.setBackgroundCell(world, new Point(10, 10), grass);
+        assertNull(world.backgroundChunks[0]);
+        Background.setBackgroundCell(world, new Point(10, 10), dirt);
+        assertSame(dirt, Background.getBackgroundCell(world, new Point(10, 10)));
+        assertSame(grass, Background.getBackgroundCell(world, new Point(11, 10)));
+        assertNotNull(world.backgroundChunks[0]);
+    }
+
+    // fetches the path from the telemetry server, publishing from this thread until the answer is in
+    private static String fetch(Telemetry telemetry, VirtualWorld virtualWorld, String path) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + Telemetry.port(telemetry) + path)).build();
+        CompletableFuture<HttpResponse<String>> response = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        while (!response.isDone()) {
+            Thread.sleep(10);
+            if (telemetry.publishWanted.get() != null || telemetry.snapshotWanted.get() != null) {
+                Telemetry.publish(telemetry, virtualWorld.world, virtualWorld.scheduler);
+            }
+        }
+        assertEquals(200, response.get().statusCode());
+        return response.get().body();
+    }
+
+    @Test
+    public void testTelemetry() throws Exception {
+        VirtualWorld virtualWorld = Benchmarks.headlessWorld(makeSave(1, 5, "dude mydude 0 0 0.100 0.180 4", "tree mytree 4 0 0.250 100.0 3", "house myhouse 2 0"));
+        Telemetry telemetry = Telemetry.start(0);
+        try {
+            Telemetry.attach(telemetry, virtualWorld.world);
+            String metrics = fetch(telemetry, virtualWorld, "/metrics");
+            assertTrue(metrics.contains("virtualworld_entities{kind=\"DUDE_NOT_FULL\"} 1\n"), metrics);
+            assertTrue(metrics.contains("virtualworld_queue_depth "), metrics);
+
+            // without a cursor the client gets every position
+            String first = fetch(telemetry, virtualWorld, "/entities");
+            assertTrue(first.startsWith("{\"cursor\":2,\"snapshot\":true,"), first);
+            assertTrue(first.contains("[\"mydude\",0,0]") && first.contains("[\"myhouse\",2,0]"), first);
+
+            // publishes nobody asked for leave the changes collecting
+            virtualWorld.update(0.15);
+            Telemetry.publish(telemetry, virtualWorld.world, virtualWorld.scheduler);
+            virtualWorld.update(0.1);
+            Telemetry.publish(telemetry, virtualWorld.world, virtualWorld.scheduler);
+            assertEquals(2, telemetry.sequence);
+            assertEquals(1, telemetry.changed.size());
+
+            // then a request gets what changed since its cursor, in one batch
+            assertEquals("{\"cursor\":3,\"snapshot\":false,\"moved\":[[\"mydude\",1,0]],\"removed\":[]}", fetch(telemetry, virtualWorld, "/entities?since=2"));
+            assertEquals("{\"cursor\":4,\"snapshot\":false,\"moved\":[],\"removed\":[]}", fetch(telemetry, virtualWorld, "/entities?since=3"));
+
+            // a client that fell behind the ring starts over from a snapshot
+            for (int i = 0; i < Telemetry.RING_SIZE; i++) {
+                telemetry.publishWanted.set(new CompletableFuture<>());
+                Telemetry.publish(telemetry, virtualWorld.world, virtualWorld.scheduler);
+            }
+            assertTrue(fetch(telemetry, virtualWorld, "/entities?since=2").contains("\"snapshot\":true"));
+            assertEquals(2, telemetry.snapshotsServed.get());
+
+            // and so does one whose cursor is from the world before a restart
+            long cursor = telemetry.sequence;
+            VirtualWorld restarted = Benchmarks.headlessWorld(makeSave(1, 5, "house otherhouse 3 0"));
+            Telemetry.attach(telemetry, restarted.world);
+            assertEquals("{\"cursor\":" + (cursor + 1) + ",\"snapshot\":true,\"moved\":[[\"otherhouse\",3,0]],\"removed\":[]}", fetch(telemetry, restarted, "/entities?since=" + cursor));
+        } finally {
+            Telemetry.stop(telemetry);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * Watches the world file and image list of a running VirtualWorld and
+ * applies edits to them in place, so a change doesn't mean a restart.
+ * Entities are matched by id, or by kind and position in the file when
+ * they have no id. Only what changed in the file touches the running
+ * world: removed entities are removed and unscheduled, new ones are added
+ * and scheduled, and entities whose position changed in the file are
+ * moved. Everything else keeps its state and its pending events.
+ *
+ * Each line of the file is tied to the running entity it was loaded as,
+ * which stays the same object however far it has walked or whatever it
+ * has turned into since, as transforms happen in place. An id-less
+ * entity that shows up at a new position in the file while an identical
+ * one disappeared from its old one is taken to have moved.
+ */
+public final class WorldWatcher {
+    public WatchService service;
+    public Path worldFile;
+    public Path imageListFile;
+
+    // entities as the world file last described them, and their running counterparts
+    public Map<String, Entity> fileEntities;
+    public Map<String, Entity> liveEntities;
+
+    public WorldWatcher(WatchService service, Path worldFile, Path imageListFile) {
+        this.service = service;
+        this.worldFile = worldFile;
+        this.imageListFile = imageListFile;
+        this.fileEntities = new HashMap<>();
+        this.liveEntities = new HashMap<>();
+    }
+
+    public static WorldWatcher create(String worldFile, String imageListFile, WorldModel world, ImageStore imageStore) throws IOException {
+        Path worldPath = Paths.get(worldFile).toAbsolutePath();
+        Path imageListPath = Paths.get(imageListFile).toAbsolutePath();
+
+        WorldWatcher watcher = new WorldWatcher(FileSystems.getDefault().newWatchService(), worldPath, imageListPath);
+        Set<Path> directories = new HashSet<>(List.of(worldPath.getParent(), imageListPath.getParent()));
+        for (Path directory : directories) {
+            directory.register(watcher.service, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+        track(watcher, world, imageStore);
+        return watcher;
+    }
+
+    /*
+       Starts matching the file against a freshly loaded world, whose
+       entities are still exactly where the file put them.
+    */
+    public static void track(WorldWatcher watcher, WorldModel world, ImageStore imageStore) throws FileNotFoundException {
+        watcher.fileEntities = byKey(parseWorld(watcher.worldFile.toFile(), imageStore).entities);
+        watcher.liveEntities = byKey(world.entities);
+    }
+
+    /*
+       Returns which of the watched files changed since the last call,
+       without waiting.
+    */
+    public static Set<Path> pollChanges(WorldWatcher watcher) {
+        Set<Path> changed = new HashSet<>();
+        WatchKey key;
+        while ((key = watcher.service.poll()) != null) {
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.context() instanceof Path name) {
+                    Path file = directory.resolve(name);
+                    if (file.equals(watcher.worldFile) || file.equals(watcher.imageListFile)) {
+                        changed.add(file);
+                    }
+                }
+            }
+            key.reset();
+        }
+        return changed;
+    }
+
+    /*
+       Applies the difference between the world file as it was last read
+       and as it is now to the running world. Returns false if the size of
+       the world changed, which can't be done in place.
+    */
+    public static boolean reloadWorld(WorldWatcher watcher, WorldModel world, EventScheduler scheduler, ImageStore imageStore) throws FileNotFoundException {
+        WorldModel parsed = parseWorld(watcher.worldFile.toFile(), imageStore);
+        if (parsed.numRows != world.numRows || parsed.numCols != world.numCols) {
+            return false;
+        }
+
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                Point pos = new Point(col, row);
+                Background.setBackgroundCell(world, pos, Background.intern(world, Background.getBackgroundCell(parsed, pos)));
+            }
+        }
+        Background.compactBackground(world);
+
+        Map<String, Entity> next = byKey(parsed.entities);
+        List<String> gone = new ArrayList<>();
+        for (String key : watcher.fileEntities.keySet()) {
+            if (!next.containsKey(key)) {
+                gone.add(key);
+            }
+        }
+        Map<String, Entity> previousEntities = new HashMap<>(watcher.fileEntities);
+        for (Map.Entry<String, Entity> entry : next.entrySet()) {
+            Entity entity = entry.getValue();
+            if (entity.id.isEmpty() && !previousEntities.containsKey(entry.getKey())) {
+                String from = movedFrom(watcher, gone, entity);
+                if (from != null) {
+                    gone.remove(from);
+                    previousEntities.put(entry.getKey(), watcher.fileEntities.get(from));
+                    watcher.liveEntities.put(entry.getKey(), watcher.liveEntities.remove(from));
+                }
+            }
+        }
+        for (String key : gone) {
+            removeLive(watcher, world, scheduler, key);
+        }
+
+        for (Map.Entry<String, Entity> entry : next.entrySet()) {
+            Entity previous = previousEntities.get(entry.getKey());
+            Entity entity = entry.getValue();
+            if (previous == null || !sameProperties(previous, entity)) {
+                removeLive(watcher, world, scheduler, entry.getKey());
+                addLive(watcher, world, scheduler, imageStore, entry.getKey(), entity);
+            } else if (!previous.position.equals(entity.position)) {
+                Entity live = watcher.liveEntities.get(entry.getKey());
+                if (live != null && live.world == world && !WorldModel.isOccupied(world, entity.position)) {
+                    Entity.moveEntity(world, scheduler, live, entity.position);
+                }
+            }
+        }
+        watcher.fileEntities = next;
+        return true;
+    }
+
+    // the nearest of the id-less entities gone from the file that the new one could have moved from
+    private static String movedFrom(WorldWatcher watcher, List<String> gone, Entity entity) {
+        String nearest = null;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (String key : gone) {
+            Entity previous = watcher.fileEntities.get(key);
+            int distance = Point.distanceSquared(previous.position, entity.position);
+            if (previous.id.isEmpty() && sameProperties(previous, entity) && distance < nearestDistance) {
+                nearest = key;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /*
+       Reads the image list again and points every entity and background at
+       the new images. Unchanged image files come straight from the cache.
+    */
+    public static void reloadImages(WorldWatcher watcher, WorldModel world, ImageStore imageStore, PApplet screen) throws FileNotFoundException {
+        // every entity shares the list of the key it was given, so that is how its key is found again
+        Map<List<PImage>, String> keys = new IdentityHashMap<>();
+        for (Map.Entry<String, List<PImage>> entry : imageStore.images.entrySet()) {
+            keys.put(entry.getValue(), entry.getKey());
+        }
+        imageStore.images.clear();
+        imageStore.sources.clear();
+        try (Scanner in = new Scanner(watcher.imageListFile.toFile())) {
+            Functions.loadImages(in, imageStore, screen);
+        }
+
+        for (Entity entity : world.entities) {
+            String key = keys.get(entity.images);
+            if (key != null) {
+                entity.images = ImageStore.getImageList(imageStore, key);
+            }
+        }
+        // built again with the new colors the next time it is shown
+        world.overview = null;
+        for (Background background : world.backgroundTypes.values()) {
+            background.images = ImageStore.getImageList(imageStore, background.id);
+            background.imageIndex = 0;
+            background.image = background.images.get(0);
+        }
+    }
+
+    public static WorldModel parseWorld(File file, ImageStore imageStore) throws FileNotFoundException {
+        WorldModel parsed = new WorldModel();
+        try (Scanner in = new Scanner(file)) {
+            Functions.load(parsed, in, imageStore, VirtualWorld.createDefaultBackground(imageStore));
+        }
+        return parsed;
+    }
+
+    public static String entityKey(Entity entity) {
+        return entity.id.isEmpty() ?
+                String.format("%s %d %d", entity.kind, entity.position.x, entity.position.y) :
+                String.format("%s %s", entity.kind, entity.id);
+    }
+
+    public static boolean sameProperties(Entity a, Entity b) {
+        return a.kind == b.kind && a.actionPeriod == b.actionPeriod && a.animationPeriod == b.animationPeriod
+                && a.health == b.health && a.healthLimit == b.healthLimit && a.resourceLimit == b.resourceLimit;
+    }
+
+    private static Map<String, Entity> byKey(Collection<Entity> entities) {
+        Map<String, Entity> keyed = new HashMap<>();
+        for (Entity entity : entities) {
+            keyed.put(entityKey(entity), entity);
+        }
+        return keyed;
+    }
+
+    private static void removeLive(WorldWatcher watcher, WorldModel world, EventScheduler scheduler, String key) {
+        Entity live = watcher.liveEntities.remove(key);
+        if (live != null && live.world == world) {
+            Entity.removeEntity(world, scheduler, live);
+        }
+    }
+
+    private static void addLive(WorldWatcher watcher, WorldModel world, EventScheduler scheduler, ImageStore imageStore, String key, Entity parsed) {
+        if (WorldModel.isOccupied(world, parsed.position)) {
+            System.out.println("Not adding " + key + ", " + parsed.position + " is occupied");
+            return;
+        }
+        // the parsed entity stays behind as the file's version of it
+        Entity live = new Entity(parsed.kind, parsed.id, parsed.position, parsed.images, parsed.resourceLimit, parsed.resourceCount, parsed.actionPeriod, parsed.animationPeriod, parsed.health, parsed.healthLimit);
+        Entity.addEntity(world, live);
+        Action.scheduleActions(live, scheduler, world, imageStore);
+        watcher.liveEntities.put(key, live);
+    }
+}